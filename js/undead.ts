@@ -2,10 +2,130 @@ import { Socket } from "phoenix";
 import { LiveSocket } from "phoenix_live_view";
 import topbar from "topbar";
 
+// Statics cache
+// The statics ("s" arrays) of rendered templates are cached (in localStorage) by their fingerprint
+// and the fingerprints are sent when joining a LiveView so the join reply (including rejoins after
+// reconnecting) can send the fingerprint (a hex string) instead of the statics.  Later replies and
+// diffs also send the fingerprint of statics that were already sent during the session.
+type Statics = string[];
+const STATICS_KEY = "undead:statics";
+// statics kept in localStorage
+const MAX_STATICS = 200;
+// fingerprints sent when joining (the most recently used, i.e. those of the current and recent pages)
+const MAX_JOIN_STATICS = 64;
+const statics = loadStatics();
+
+function loadStatics(): Map<string, Statics> {
+  try {
+    return new Map(JSON.parse(localStorage.getItem(STATICS_KEY) || "[]"));
+  } catch (e) {
+    return new Map();
+  }
+}
+
+function saveStatics() {
+  // store the most recently used statics but keep all of them in memory (the server may refer
+  // to any statics it sent during the session)
+  try {
+    localStorage.setItem(STATICS_KEY, JSON.stringify(Array.from(statics.entries()).slice(-MAX_STATICS)));
+  } catch (e) {
+    // storage is full or disabled so only cache in memory
+  }
+}
+
+// fingerprint is the 64-bit FNV-1a hash of the statics (the same as Statics#fingerprint on the server)
+// computed with 32-bit halves and formatted like Long.toHexString
+function fingerprint(s: Statics): string {
+  let hi = 0xcbf29ce4, lo = 0x84222325;
+  const mix = (c: number) => {
+    lo = (lo ^ c) >>> 0;
+    // multiply by the FNV prime (2^40 + 0x1b3) modulo 2^64
+    const a = lo * 0x1b3;
+    hi = (hi * 0x1b3 + Math.floor(a / 0x100000000) + (lo << 8)) >>> 0;
+    lo = a >>> 0;
+  };
+  for (const fragment of s) {
+    for (let i = 0; i < fragment.length; i++) {
+      mix(fragment.charCodeAt(i));
+    }
+    mix(0xffff);
+  }
+  return hi ? hi.toString(16) + lo.toString(16).padStart(8, "0") : lo.toString(16);
+}
+
+// resolve replaces cached statics references with the statics and caches any new statics
+function resolve(node: any): boolean {
+  let changed = false;
+  const resolveStatics = (s: any): any => {
+    if (typeof s === "string") {
+      const cached = statics.get(s);
+      if (!cached) {
+        throw new Error(`unknown statics: ${s}`);
+      }
+      // move to the end so it is kept as recently used
+      statics.delete(s);
+      statics.set(s, cached);
+      return cached;
+    }
+    if (Array.isArray(s)) {
+      const fp = fingerprint(s);
+      changed = changed || !statics.has(fp);
+      statics.delete(fp);
+      statics.set(fp, s);
+    }
+    return s;
+  };
+  const walk = (n: any) => {
+    if (Array.isArray(n)) {
+      n.forEach(walk);
+      return;
+    }
+    if (n === null || typeof n !== "object") {
+      return;
+    }
+    for (const key of Object.keys(n)) {
+      if (key === "s") {
+        n.s = resolveStatics(n.s);
+      } else if (key === "p") {
+        for (const i of Object.keys(n.p)) {
+          n.p[i] = resolveStatics(n.p[i]);
+        }
+      } else if (key !== "e" && key !== "t" && key !== "stream") {
+        walk(n[key]);
+      }
+    }
+  };
+  walk(node);
+  return changed;
+}
+
+function decode(rawPayload: string, callback: (msg: any) => any) {
+  const [join_ref, ref, topic, event, payload] = JSON.parse(rawPayload);
+  const response = event === "phx_reply" ? payload?.response : undefined;
+  const rendered = event === "diff" ? payload : response?.rendered ?? response?.diff;
+  if (rendered) {
+    try {
+      if (resolve(rendered)) {
+        saveStatics();
+      }
+    } catch (e) {
+      // the cache changed since joining so start over
+      localStorage.removeItem(STATICS_KEY);
+      window.location.reload();
+    }
+  }
+  return callback({ join_ref, ref, topic, event, payload });
+}
+
 // LiveView
 let csrfToken = document.querySelector("meta[name='csrf-token']")?.getAttribute("content");
 let liveSocket = new LiveSocket("/live", Socket, {
-  params: { _csrf_token: csrfToken },
+  // params are sent on every (re)join (with the element of the LiveView) so they include the currently cached
+  // statics but the socket also appends them to its url (without an element) so the statics are left out there
+  params: (el?: Element) => el
+    ? { _csrf_token: csrfToken, _statics: Array.from(statics.keys()).slice(-MAX_JOIN_STATICS) }
+    : { _csrf_token: csrfToken },
+  decode,
   bindingPrefix: "ud-"
 });
 
@@ -1,14 +1,18 @@
 package run.undead.config;
 
+import run.undead.context.SharedDiffs;
 import run.undead.pubsub.MemPubSub;
 import run.undead.pubsub.PubSub;
 import run.undead.template.MainLayout;
 import run.undead.template.PageTitle;
+import run.undead.template.Parallel;
 import run.undead.template.UndeadTemplate;
 import run.undead.template.WrapperTemplate;
 import run.undead.view.RouteMatcher;
 import run.undead.view.View;
 
+import java.time.Duration;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Consumer;
 
 /**
@@ -28,6 +32,22 @@ public class Config {
 
   public PubSub pubsub;
 
+  // how long infos are collected before rendering a View again (see Context#renderWindow)
+  public Duration renderWindow = Duration.ZERO;
+
+  // number of messages waiting to be written to a websocket before diffs are merged
+  public int outboundConflateAt = 8;
+  // number of messages waiting to be written to a websocket before it is closed
+  public int outboundLimit = 256;
+
+  // number of rows in a list before it is rendered in parallel (see Parallel)
+  public int parallelThreshold = Parallel.DEFAULT.threshold();
+  // pool used to render large lists in parallel
+  public ForkJoinPool parallelPool = Parallel.DEFAULT.pool();
+
+  // diffs shared between the sessions of Views that share diffs (see Context#shareDiffs)
+  public SharedDiffs sharedDiffs = new SharedDiffs(1_000);
+
   public Config() {
     // use the default main layout
     this.mainLayout = new MainLayout() {
@@ -40,4 +60,12 @@ public class Config {
     this.pubsub = MemPubSub.INSTANCE;
   }
 
+  /**
+   * parallel returns the settings for rendering large lists in parallel
+   * @return the settings for rendering large lists in parallel
+   */
+  public Parallel parallel() {
+    return new Parallel(this.parallelThreshold, this.parallelPool);
+  }
+
 }
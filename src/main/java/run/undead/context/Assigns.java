@@ -0,0 +1,178 @@
+package run.undead.context;
+
+import run.undead.template.Directive;
+import run.undead.template.UndeadTemplate;
+import run.undead.view.Meta;
+import run.undead.view.View;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ * Assigns is a change-tracked key / value container for the state of a {@link View}.  A {@link View}
+ * writes to the assigns (via {@link Context#assigns()}) in {@link View#mount}, {@link View#handleEvent}, etc and
+ * reads them (via {@link Meta#assigns()}) in {@link View#render}.  Every write that changes a value bumps the
+ * version of that key and marks the key as changed until the next render completes.
+ * </p>
+ * <p>
+ * Template slots can declare which assigns they read using {@link #slot}.  A slot is only rendered again
+ * (and diffed) when one of the keys it reads was changed, otherwise the previously rendered slot is reused.
+ * For example:
+ * <pre>{@code
+ *   public void handleEvent(Context context, UndeadEvent event) {
+ *     context.assigns().update("count", (Integer c) -> c + 1);
+ *   }
+ *
+ *   public UndeadTemplate render(Meta meta) {
+ *     var assigns = meta.assigns();
+ *     return HTML."""
+ *       <h1>\{ assigns.slot(() -> HTML."Count: \{ assigns.get("count") }", "count") }</h1>
+ *       <ul>\{ assigns.slot(() -> HTML."\{ For(assigns.<List<String>>get("items"), i -> HTML."<li>\{i}</li>") }", "items") }</ul>
+ *     """;
+ *   }
+ * }</pre>
+ * </p>
+ * <strong>Note:</strong> a value that is equal to the current value is not considered a change so mutating
+ * a (mutable) value in place and putting it back will not be detected; use {@link #touch} in that case.
+ */
+public class Assigns {
+  private final Map<String, Object> values = new HashMap<>();
+  private final Map<String, Long> versions = new HashMap<>();
+  private final Set<String> changed = new HashSet<>();
+  // incremented on every change so the version of a key is unique across all keys
+  private long clock;
+
+  /**
+   * put sets the value of the key and marks the key as changed if the value is not equal to
+   * the current value
+   * @param key the key to set
+   * @param value the new value
+   * @return this Assigns
+   */
+  public Assigns put(String key, Object value) {
+    if (this.values.containsKey(key) && Objects.equals(this.values.get(key), value)) {
+      return this;
+    }
+    this.values.put(key, value);
+    return touch(key);
+  }
+
+  /**
+   * putNew sets the value of the key only if the key has not been set before which is useful
+   * for initializing state in {@link View#mount}
+   * @param key the key to set
+   * @param value supplies the initial value
+   * @return this Assigns
+   */
+  public Assigns putNew(String key, Supplier<?> value) {
+    if (!this.values.containsKey(key)) {
+      put(key, value.get());
+    }
+    return this;
+  }
+
+  /**
+   * update sets the value of the key to the result of applying the function to the current value
+   * @param key the key to update
+   * @param fn the function to apply to the current value
+   * @return this Assigns
+   * @param <T> the type of the value
+   */
+  public <T> Assigns update(String key, Function<T, T> fn) {
+    return put(key, fn.apply(get(key)));
+  }
+
+  /**
+   * touch marks the key as changed even if the value is the same (e.g. it was mutated in place)
+   * @param key the key to mark as changed
+   * @return this Assigns
+   */
+  public Assigns touch(String key) {
+    this.versions.put(key, ++this.clock);
+    this.changed.add(key);
+    return this;
+  }
+
+  /**
+   * get returns the value of the key or null if the key is not set
+   * @param key the key to get
+   * @return the value of the key
+   * @param <T> the type of the value
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T get(String key) {
+    return (T) this.values.get(key);
+  }
+
+  /**
+   * get returns the value of the key or the default value if the key is not set
+   * @param key the key to get
+   * @param defaultValue the value to return if the key is not set
+   * @return the value of the key or the default value
+   * @param <T> the type of the value
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T get(String key, T defaultValue) {
+    return (T) this.values.getOrDefault(key, defaultValue);
+  }
+
+  /**
+   * changed returns true if the key was written since the last render
+   * @param key the key to check
+   * @return true if the key changed since the last render
+   */
+  public boolean changed(String key) {
+    return this.changed.contains(key);
+  }
+
+  /**
+   * changed returns the keys that were written since the last render
+   * @return the changed keys
+   */
+  public Set<String> changed() {
+    return Set.copyOf(this.changed);
+  }
+
+  /**
+   * version returns the version of the key which changes every time the key changes or 0 if
+   * the key has never been set
+   * @param key the key
+   * @return the version of the key
+   */
+  public long version(String key) {
+    return this.versions.getOrDefault(key, 0L);
+  }
+
+  /**
+   * slot returns a template slot that reads the given keys.  The template is only rendered
+   * (and diffed) again when at least one of the keys changed since the slot was last rendered.
+   * @param template supplies the template for the slot
+   * @param keys the keys the template reads
+   * @return a template that renders the slot
+   */
+  public UndeadTemplate slot(Supplier<UndeadTemplate> template, String... keys) {
+    // the latest version of the keys changes if (and only if) one of the keys changes
+    var latest = 0L;
+    for (var key : keys) {
+      latest = Math.max(latest, version(key));
+    }
+    return Directive.Memo(new SlotKey(List.of(keys), latest), template);
+  }
+
+  /**
+   * clearChanged resets the changed keys and is called after each render
+   */
+  void clearChanged() {
+    this.changed.clear();
+  }
+
+  private record SlotKey(List<String> keys, long version) {
+  }
+}
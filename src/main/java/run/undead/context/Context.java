@@ -2,9 +2,16 @@ package run.undead.context;
 
 import run.undead.event.UndeadEvent;
 import run.undead.event.UndeadInfo;
+import run.undead.template.Directive;
+import run.undead.template.Stream;
 import run.undead.view.View;
 import run.undead.template.MainLayout;
 
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
 /**
  * Context abstracts the underlying transport mechanism (i.e. HTTP or WebSocket) for a
  * {@link View} and provides common functionality and metadata to extend the behavior
@@ -12,7 +19,7 @@ import run.undead.template.MainLayout;
  */
 public interface Context {
   // TODO:
-  // support tempAssign (perhaps a @TempAssign annotation on a property?)
+  // support tempAssign (i.e. clearing assigns after render)
   // support pushPatch, pushRedirect,
   // how do we inject services into this object?
   // uploads: allowUpload, cancelUpload, consumeUploadedEntries, uploadedEntries
@@ -34,6 +41,64 @@ public interface Context {
    */
   String url();
 
+  /**
+   * assigns is the change-tracked state of the {@link View}.  Writing to the assigns records which
+   * keys changed so that {@link View#render} only needs to render the slots that read those keys.
+   * Contexts that don't track assigns (e.g. implementations written before assigns existed) throw
+   * an {@link UnsupportedOperationException}.
+   * @see Assigns
+   */
+  default Assigns assigns() {
+    throw new UnsupportedOperationException("assigns are not supported by " + getClass().getName());
+  }
+
+  /**
+   * stream returns the {@link Stream} with the given name creating it if it doesn't exist.  The stream
+   * is kept in the {@link #assigns()} under the same name so it can be rendered with {@link Directive#Stream}
+   * and any change to the stream marks that assign as changed.
+   * @param name the name of the stream
+   * @param domId returns the (unique) dom id of an item in the stream
+   * @return the stream with the given name
+   * @param <T> the type of the items in the stream
+   */
+  default <T> Stream<T> stream(String name, Function<T, String> domId) {
+    Stream<T> stream = assigns().get(name);
+    if (stream == null) {
+      stream = new Stream<T>(name, domId).onChange(() -> assigns().touch(name));
+      assigns().put(name, stream);
+    }
+    return stream;
+  }
+
+  /**
+   * async runs the task on a virtual thread and stores the (future) result in the {@link #assigns()}
+   * under the given name so it can be rendered with {@link Directive#Async}.  When the task completes
+   * the {@link View} is rendered again and the diff is sent to the client.  Tasks that are not complete
+   * when the websocket closes are cancelled (and interrupted).  <strong>Note:</strong> the task is only
+   * run once connected to the websocket so the HTTP render shows the loading state.
+   * @param name the name of the assign
+   * @param task the (slow) task to run
+   * @return the future result of the task
+   * @param <T> the type of the result
+   */
+  default <T> CompletableFuture<T> async(String name, Supplier<T> task) {
+    return async(name, new CompletableFuture<T>());
+  }
+
+  /**
+   * async stores the future in the {@link #assigns()} under the given name so it can be rendered with
+   * {@link Directive#Async}.  When the future completes the {@link View} is rendered again and the diff
+   * is sent to the client.  Futures that are not complete when the websocket closes are cancelled.
+   * @param name the name of the assign
+   * @param future the future result
+   * @return the future
+   * @param <T> the type of the result
+   */
+  default <T> CompletableFuture<T> async(String name, CompletableFuture<T> future) {
+    assigns().put(name, future);
+    return future;
+  }
+
   /**
    * pageTitle updates the `<title>` tag of the {@link View} page.  Requires using the
    * {@link MainLayout#liveTitle} helper in rendering the page.
@@ -60,6 +125,30 @@ public interface Context {
     // noop by default
   }
 
+  /**
+   * renderWindow sets how long infos (see {@link #sendInfo}) and async results are collected before the
+   * {@link View} is rendered again.  The first info renders right away and opens the window; any infos that
+   * arrive during the window are all handled by {@link View#handleInfo} but only rendered (as a single diff)
+   * when the window closes.  Client events are always rendered right away (which includes any collected
+   * infos).  Defaults to {@link run.undead.config.Config#renderWindow} and a zero window renders every info.
+   * @param window the duration of the window
+   */
+  default void renderWindow(Duration window) {
+    // noop by default
+  }
+
+  /**
+   * shareDiffs sets whether the diffs of infos (see {@link #sendInfo}) are shared with other sessions.  When
+   * many sessions of a {@link View} render the same change (e.g. a broadcast to a pubsub topic they are all
+   * subscribed to) only the first session computes and serializes the diff (the diffs are kept in
+   * {@link run.undead.config.Config#sharedDiffs}).  Sharing fingerprints both trees on every render so it
+   * only pays off for Views whose sessions render the same content.  Defaults to false.
+   * @param share true to share diffs with other sessions
+   */
+  default void shareDiffs(boolean share) {
+    // noop by default
+  }
+
   void redirect(String url);
 
   /**
@@ -7,6 +7,7 @@ package run.undead.context;
 public class HttpContext implements Context {
   private final String id;
   private final String url;
+  private final Assigns assigns = new Assigns();
 
   public String redirect;
 
@@ -25,6 +26,11 @@ public class HttpContext implements Context {
     return this.url;
   }
 
+  @Override
+  public Assigns assigns() {
+    return this.assigns;
+  }
+
   @Override
   public void redirect(String url) {
     this.redirect = url;
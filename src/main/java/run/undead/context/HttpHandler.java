@@ -6,6 +6,8 @@ import run.undead.template.*;
 import run.undead.view.Meta;
 import run.undead.view.View;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.UUID;
 
@@ -32,6 +34,80 @@ public class HttpHandler {
       PageTitle pageTitle,
       WrapperTemplate wrapperTemplate
   ) {
+    var pageTmpl = render(view, mainLayout, adaptor, pageTitle, wrapperTemplate);
+    if (pageTmpl == null) {
+      return null;
+    }
+    // serialize the View to HTML
+    return pageTmpl.toString();
+  }
+
+  /**
+   * Handle the HTTP request lifecycle for a {@link View} and either
+   * stream the rendered HTML to the given {@link Appendable} or redirect the request.
+   * The page is written in a single pass without building intermediate Strings.
+   * @param view the {@link View} to render
+   * @param mainLayout the {@link MainLayout} to render the {@link View} inside
+   * @param adaptor the {@link RequestAdaptor} to pull data from the HTTP request
+   * @param pageTitle the {@link PageTitle} to pass to the {@link MainLayout}
+   * @param wrapperTemplate the optional {@link WrapperTemplate} to render the {@link View} inside
+   * @param out the {@link Appendable} to write the rendered HTML to
+   * @return true if the HTML was written or false if the request was redirected
+   * @throws IOException if writing to the {@link Appendable} fails
+   */
+  static public boolean handle(
+      View view,
+      MainLayout mainLayout,
+      RequestAdaptor adaptor,
+      PageTitle pageTitle,
+      WrapperTemplate wrapperTemplate,
+      Appendable out
+  ) throws IOException {
+    var pageTmpl = render(view, mainLayout, adaptor, pageTitle, wrapperTemplate);
+    if (pageTmpl == null) {
+      return false;
+    }
+    pageTmpl.renderTo(out);
+    return true;
+  }
+
+  /**
+   * Handle the HTTP request lifecycle for a {@link View} and either
+   * stream the rendered HTML as UTF-8 to the given {@link OutputStream} or redirect the request.
+   * The static parts of the page are written from bytes that are encoded once per template
+   * so only the dynamic parts are encoded for each request.
+   * @param view the {@link View} to render
+   * @param mainLayout the {@link MainLayout} to render the {@link View} inside
+   * @param adaptor the {@link RequestAdaptor} to pull data from the HTTP request
+   * @param pageTitle the {@link PageTitle} to pass to the {@link MainLayout}
+   * @param wrapperTemplate the optional {@link WrapperTemplate} to render the {@link View} inside
+   * @param out the {@link OutputStream} to write the rendered HTML to
+   * @return true if the HTML was written or false if the request was redirected
+   * @throws IOException if writing to the {@link OutputStream} fails
+   */
+  static public boolean handle(
+      View view,
+      MainLayout mainLayout,
+      RequestAdaptor adaptor,
+      PageTitle pageTitle,
+      WrapperTemplate wrapperTemplate,
+      OutputStream out
+  ) throws IOException {
+    var pageTmpl = render(view, mainLayout, adaptor, pageTitle, wrapperTemplate);
+    if (pageTmpl == null) {
+      return false;
+    }
+    pageTmpl.renderTo(out);
+    return true;
+  }
+
+  static private UndeadTemplate render(
+      View view,
+      MainLayout mainLayout,
+      RequestAdaptor adaptor,
+      PageTitle pageTitle,
+      WrapperTemplate wrapperTemplate
+  ) {
 
     // new viewId for each request
     var viewId = UUID.randomUUID().toString();
@@ -73,7 +149,7 @@ public class HttpHandler {
     }
 
     // Step 3: call render
-    var meta = new Meta();
+    var meta = new Meta(ctx.assigns());
     // TODO implement Components
     var tmpl = view.render(meta);
 
@@ -101,9 +177,6 @@ public class HttpHandler {
     """ ;
 
     // render the main layout with the View inside
-    var pageTmpl = mainLayout.render(pageTitle, csrfToken, rootContent);
-
-    // serialize the View to HTML
-    return pageTmpl.toString();
+    return mainLayout.render(pageTitle, csrfToken, rootContent);
   }
 }
@@ -0,0 +1,80 @@
+package run.undead.context;
+
+import run.undead.template.Parallel;
+import run.undead.view.View;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Mailbox runs the tasks of a single session (i.e. client events, infos, timers and async results) one at
+ * a time in the order they were posted.  Tasks are drained by a virtual thread that is started when the
+ * first task is posted and exits once the mailbox is empty, so posting never blocks the caller (e.g. a
+ * websocket I/O thread) and the {@link View} is only ever accessed by one thread at a time without locks.
+ */
+final class Mailbox {
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  // true while a virtual thread is draining the tasks
+  private final AtomicBoolean draining = new AtomicBoolean();
+  private final Consumer<Throwable> onError;
+  // tasks render with the parallel settings of the session
+  private final Parallel parallel;
+  private volatile boolean closed;
+
+  /**
+   * Mailbox creates a new mailbox
+   * @param onError called (on the mailbox thread) with any exception thrown by a task
+   */
+  Mailbox(Consumer<Throwable> onError) {
+    this(onError, Parallel.DEFAULT);
+  }
+
+  /**
+   * Mailbox creates a new mailbox whose tasks render large lists with the given {@link Parallel} settings
+   * @param onError called (on the mailbox thread) with any exception thrown by a task
+   * @param parallel the settings for rendering large lists in parallel
+   */
+  Mailbox(Consumer<Throwable> onError, Parallel parallel) {
+    this.onError = onError;
+    this.parallel = parallel;
+  }
+
+  /**
+   * post adds the task to the mailbox (unless the mailbox is closed)
+   * @param task the task to run
+   */
+  void post(Runnable task) {
+    if (this.closed) {
+      return;
+    }
+    this.tasks.add(task);
+    if (this.draining.compareAndSet(false, true)) {
+      Thread.ofVirtual().name("undead-mailbox").start(() -> this.parallel.run(this::drain));
+    }
+  }
+
+  /**
+   * close drops any tasks that have not run yet and ignores tasks posted after closing
+   */
+  void close() {
+    this.closed = true;
+    this.tasks.clear();
+  }
+
+  private void drain() {
+    do {
+      Runnable task;
+      while (!this.closed && (task = this.tasks.poll()) != null) {
+        try {
+          task.run();
+        } catch (Throwable t) {
+          this.onError.accept(t);
+        }
+      }
+      this.draining.set(false);
+      // a task may have been posted after the last poll but before draining was cleared
+    } while (!this.closed && !this.tasks.isEmpty() && this.draining.compareAndSet(false, true));
+  }
+}
@@ -0,0 +1,132 @@
+package run.undead.context;
+
+import run.undead.protocol.Reply;
+import run.undead.template.Rendered;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ * Outbound is the bounded queue of messages waiting to be written to a websocket.  Only one message is
+ * written (without blocking, see {@link WsSender#send(String, Consumer)}) at a time and the rest wait in the
+ * queue so a slow client never blocks the thread that renders its {@link run.undead.view.View}.
+ * </p>
+ * <p>
+ * Once <code>conflateAt</code> messages are waiting, a new diff is merged with the diff at the end of the queue
+ * (if there is nothing in between) into a single diff from the tree the client has (or will have once the
+ * messages before it are written) to the newest tree.  If <code>limit</code> messages are waiting anyway (e.g.
+ * replies which can't be merged) the client cannot keep up so the websocket is closed.
+ * </p>
+ */
+final class Outbound implements WsSender {
+  private final WsSender transport;
+  private final int conflateAt;
+  private final int limit;
+  private final Deque<Frame> pending = new ArrayDeque<>();
+  // true while a message is being written
+  private boolean writing;
+  private boolean closed;
+
+  Outbound(WsSender transport, int conflateAt, int limit) {
+    this.transport = transport;
+    this.conflateAt = conflateAt;
+    this.limit = limit;
+  }
+
+  @Override
+  public void send(String data) {
+    enqueue(new Frame(data, null, null, null, null));
+  }
+
+  /**
+   * sendDiff sends a diff message that may be merged with other diffs of the topic if the client
+   * falls behind
+   * @param topic the topic of the diff
+   * @param data the diff message
+   * @param from the tree the diff is from
+   * @param to the tree the diff is to
+   * @param sentStatics the fingerprints of the statics sent to the client of the topic
+   */
+  void sendDiff(String topic, String data, Rendered from, Rendered to, Set<Long> sentStatics) {
+    enqueue(new Frame(data, topic, from, to, sentStatics));
+  }
+
+  @Override
+  public void close(String reason) {
+    synchronized (this) {
+      this.closed = true;
+      this.pending.clear();
+    }
+    this.transport.close(reason);
+  }
+
+  private void enqueue(Frame frame) {
+    synchronized (this) {
+      if (this.closed) {
+        return;
+      }
+      if (!this.writing) {
+        this.writing = true;
+      } else {
+        add(frame);
+        if (this.pending.size() <= this.limit) {
+          return;
+        }
+        frame = null;
+      }
+    }
+    if (frame == null) {
+      close("client cannot keep up");
+      return;
+    }
+    write(frame);
+  }
+
+  // called while holding the lock
+  private void add(Frame frame) {
+    var last = this.pending.peekLast();
+    if (this.pending.size() >= this.conflateAt && frame.mergeable(last)) {
+      this.pending.pollLast();
+      // the statics sent by the merged messages may not be part of the merged diff (which includes
+      // all of its statics) so the client may not get them
+      frame.sentStatics().clear();
+      var merged = Rendered.diff(last.from(), frame.to());
+      frame = new Frame(Reply.diff(frame.topic(), merged), frame.topic(), last.from(), frame.to(), frame.sentStatics());
+    }
+    this.pending.add(frame);
+  }
+
+  private void write(Frame frame) {
+    this.transport.send(frame.data(), this::written);
+  }
+
+  private void written(Throwable err) {
+    Frame next;
+    synchronized (this) {
+      if (err != null) {
+        // the websocket failed so the adaptor will close it
+        this.closed = true;
+        this.pending.clear();
+      }
+      next = this.closed ? null : this.pending.poll();
+      if (next == null) {
+        this.writing = false;
+        return;
+      }
+    }
+    write(next);
+  }
+
+  /**
+   * Frame is a message waiting to be written along with the trees (and sent statics) of a diff that can be merged
+   */
+  private record Frame(String data, String topic, Rendered from, Rendered to, Set<Long> sentStatics) {
+    boolean mergeable(Frame previous) {
+      return previous != null && previous.from != null && this.from != null
+          && previous.topic.equals(this.topic) && previous.to == this.from;
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package run.undead.context;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import run.undead.protocol.Reply;
+import run.undead.template.Rendered;
+
+/**
+ * SharedDiffs shares the serialized diff between sessions that go from the same rendered tree to the same
+ * new rendered tree (e.g. many sessions of the same {@link run.undead.view.View} receiving the same broadcast).
+ * Diffs are looked up by the {@link Rendered#fingerprint()} of both trees alone (without comparing the trees
+ * which would cost as much as the diff) so only the first session computes and serializes the diff while the
+ * other sessions reuse it.  Sharing is opt-in (see {@link Context#shareDiffs}) and the cache is set (and can be
+ * cleared) in the {@link run.undead.config.Config}.
+ * <strong>Note:</strong> fingerprints are not cryptographic hashes so only share the diffs of Views whose
+ * sessions render the same (i.e. not per user) content.
+ */
+public final class SharedDiffs {
+
+  // recent diffs keyed by the fingerprints of the old and new trees
+  private final Cache<Key, String> diffs;
+
+  private record Key(long from, long to) {
+  }
+
+  /**
+   * SharedDiffs creates a cache that holds at most the given number of (recently used) diffs
+   * @param maximumSize the maximum number of diffs to keep
+   */
+  public SharedDiffs(int maximumSize) {
+    this.diffs = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .build();
+  }
+
+  /**
+   * clear removes all the diffs
+   */
+  public void clear() {
+    this.diffs.invalidateAll();
+  }
+
+  /**
+   * payload returns the serialized diff between the trees computing it only if no other session
+   * has already computed it
+   * @param from the previously rendered tree
+   * @param to the newly rendered tree
+   * @return the serialized diff
+   */
+  String payload(Rendered from, Rendered to) {
+    var key = new Key(from.fingerprint(), to.fingerprint());
+    return this.diffs.asMap().computeIfAbsent(key, k -> Reply.toJson(Rendered.diff(from, to)));
+  }
+}
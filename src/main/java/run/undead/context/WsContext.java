@@ -5,19 +5,28 @@ import run.undead.event.UndeadEvent;
 import run.undead.event.UndeadInfo;
 import run.undead.protocol.Reply;
 import run.undead.pubsub.PubSub;
+import run.undead.template.Rendered;
 import run.undead.template.UndeadTemplate;
 import run.undead.view.Meta;
 import run.undead.view.View;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 /**
  * WsContext is an implementation of the {@link Context} for the WebSocket
  * lifecycle.
  */
 public class WsContext implements Context {
+  private static final int MAX_SENT_STATICS = 4_096;
+
   protected String id;
   protected String url;
   protected View view;
@@ -28,9 +37,31 @@ public class WsContext implements Context {
   protected WsSender sender;
   protected Map<String, String> subs; // topic to subId
   protected PubSub pubsub;
-  protected UndeadTemplate lastTmpl;
+  // baseline for the next diff which only holds the escaped strings (and memo keys) of the last render
+  // so the values passed to the template can be collected once rendered
+  protected Rendered lastRendered;
+  // true if the last rendered tree had stream rows (which are not part of the baseline)
+  protected boolean streamRows;
   protected List<UndeadEvent> events;
   protected String title;
+  protected final Assigns assigns = new Assigns();
+  // runs events, infos and async results one at a time (shared with the WsHandler once joined)
+  protected Mailbox mailbox = new Mailbox(this::handleError);
+  // async results that are not complete yet
+  protected final Set<CompletableFuture<?>> pending = ConcurrentHashMap.newKeySet();
+  protected volatile boolean closed;
+  // infos are rendered at most once per window (the fields are only used on the mailbox thread)
+  protected Duration renderWindow = Duration.ZERO;
+  protected boolean windowOpen;
+  protected boolean renderPending;
+  // runs the task once the window has passed (replaced in tests to close windows without waiting)
+  protected BiConsumer<Duration, Runnable> windowTimer = WsContext::after;
+  // diffs of infos are shared with other sessions (see Context#shareDiffs) through the cache of the Config
+  protected boolean shareDiffs;
+  protected SharedDiffs sharedDiffs;
+  // fingerprints of the statics the client has cached or was sent during this session so only the
+  // fingerprint is sent when a shape comes back (e.g. the branches of an If)
+  protected final Set<Long> sentStatics = ConcurrentHashMap.newKeySet();
 
   public WsContext(String id, String url, View view) {
     this.id = id;
@@ -49,6 +80,11 @@ public class WsContext implements Context {
     return this.url;
   }
 
+  @Override
+  public Assigns assigns() {
+    return this.assigns;
+  }
+
   @Override
   public Boolean connected() {
     return true;
@@ -61,14 +97,145 @@ public class WsContext implements Context {
 
   @Override
   public void pushEvent(UndeadEvent event) {
+    if(this.events == null) {
+      this.events = new ArrayList<>();
+    }
     this.events.add(event);
   }
 
+  /**
+   * sendInfo posts the info to the mailbox of this context so it is handled (and rendered) on
+   * the mailbox thread after any events, infos or async results that are already waiting
+   * @param info the info to send
+   */
   @Override
   public void sendInfo(UndeadInfo info) {
-    this.view.handleInfo(this, info);
-    var content = this.view.render(new Meta());
-    this.sender.send(Reply.diff(this.id, diffParts(content)));
+    this.mailbox.post(() -> {
+      if (this.closed) {
+        return;
+      }
+      this.view.handleInfo(this, info);
+      renderInfo();
+    });
+  }
+
+  @Override
+  public void shareDiffs(boolean share) {
+    this.shareDiffs = share;
+  }
+
+  @Override
+  public void renderWindow(Duration window) {
+    this.renderWindow = window == null ? Duration.ZERO : window;
+  }
+
+  /**
+   * renderInfo renders the changes of an info (or async result) right away unless a render window
+   * is open in which case the render happens when the window closes
+   */
+  private void renderInfo() {
+    if (this.renderWindow.isZero() || this.renderWindow.isNegative()) {
+      sendDiff();
+      return;
+    }
+    if (this.windowOpen) {
+      this.renderPending = true;
+      return;
+    }
+    sendDiff();
+    openWindow();
+  }
+
+  private void openWindow() {
+    this.windowOpen = true;
+    this.windowTimer.accept(this.renderWindow, () -> this.mailbox.post(this::windowClosed));
+  }
+
+  private static void after(Duration window, Runnable task) {
+    Thread.ofVirtual().name("undead-render-window").start(() -> {
+      try {
+        Thread.sleep(window);
+      } catch (InterruptedException e) {
+        // render now
+      }
+      task.run();
+    });
+  }
+
+  private void windowClosed() {
+    this.windowOpen = false;
+    if (this.closed || !this.renderPending) {
+      return;
+    }
+    // keep the window open while infos keep arriving
+    sendDiff();
+    openWindow();
+  }
+
+  @Override
+  public <T> CompletableFuture<T> async(String name, Supplier<T> task) {
+    var future = new CompletableFuture<T>();
+    var thread = Thread.ofVirtual().name("undead-async-" + name).start(() -> {
+      try {
+        future.complete(task.get());
+      } catch (Throwable t) {
+        future.completeExceptionally(t);
+      }
+    });
+    // cancelling the future interrupts the task
+    future.whenComplete((v, err) -> {
+      if (future.isCancelled()) {
+        thread.interrupt();
+      }
+    });
+    return async(name, future);
+  }
+
+  @Override
+  public <T> CompletableFuture<T> async(String name, CompletableFuture<T> future) {
+    this.assigns.put(name, future);
+    this.pending.add(future);
+    future.whenComplete((v, err) -> {
+      this.pending.remove(future);
+      // the join is a task in the same mailbox so the result is rendered after the join reply
+      this.mailbox.post(() -> {
+        if (this.closed) {
+          return;
+        }
+        this.assigns.touch(name);
+        renderInfo();
+      });
+    });
+    return future;
+  }
+
+  /**
+   * sendDiff renders the view and sends the diff to the client
+   */
+  private void sendDiff() {
+    var content = this.view.render(new Meta(this.assigns));
+    // title, events and stream rows are per session so only plain diffs are shared or merged
+    var old = this.lastRendered;
+    if (old == null || this.title != null || this.events != null) {
+      this.sender.send(Reply.diff(this.id, diffParts(content), sentStatics()));
+      return;
+    }
+    var rendered = rendered(content);
+    if (this.streamRows) {
+      // the diff includes the stream rows so it can't be shared or merged
+      this.sender.send(Reply.diff(this.id, Rendered.diff(old, rendered), sentStatics()));
+      return;
+    }
+    // shared payloads are the same for every session so they always include the statics
+    var data = this.shareDiffs && this.sharedDiffs != null
+        ? Reply.diff(this.id, this.sharedDiffs.payload(old, rendered))
+        : Reply.diff(this.id, Rendered.diff(old, rendered), sentStatics());
+    // diffs between baselines can be merged if the client falls behind
+    if (this.sender instanceof Outbound outbound) {
+      outbound.sendDiff(this.id, data, old, rendered, this.sentStatics);
+      return;
+    }
+    this.sender.send(data);
   }
 
   @Override
@@ -113,6 +280,11 @@ public class WsContext implements Context {
   }
 
   public void handleClose() {
+    this.closed = true;
+    // cancel (and interrupt) any async tasks that are not complete yet
+    for (var future : this.pending) {
+      future.cancel(true);
+    }
     if(this.pubsub != null) {
       for(var topic : subs.keySet()) {
         this.unsubscribe(topic);
@@ -129,28 +301,59 @@ public class WsContext implements Context {
   }
 
   /**
-   * diffParts takes the new template and diffs it with the last template (if there was one)
+   * rendered converts the template to a rendered tree (reusing memoized subtrees of the last
+   * rendered tree) and makes it the baseline for the next diff
+   */
+  private Rendered rendered(UndeadTemplate newTmpl) {
+    var newRendered = newTmpl.toRendered(this.lastRendered);
+    // the client keeps the rows of streams so they are not part of the baseline
+    var baseline = newRendered.withoutStreamRows();
+    // (the same tree is returned if there are no stream rows)
+    this.streamRows = baseline != newRendered;
+    this.lastRendered = baseline;
+    // the changes have been rendered
+    this.assigns.clearChanged();
+    this.renderPending = false;
+    return newRendered;
+  }
+
+  /**
+   * sentStatics returns the fingerprints of the statics the client has (or will have once the messages
+   * already sent are written) which are updated as messages are serialized
+   */
+  Set<Long> sentStatics() {
+    // the shapes of a View are bounded by its templates but start over rather than grow without limit
+    if (this.sentStatics.size() > MAX_SENT_STATICS) {
+      this.sentStatics.clear();
+    }
+    return this.sentStatics;
+  }
+
+  /**
+   * diffParts takes the new template and diffs it with the last rendered tree (if there was one)
    * and returns the diff "parts" to send to the client.  Additionally, this method will
    * add the title and events to the parts if they are set.
-   * @param newTmpl the new template to diff with the last template
+   * @param newTmpl the new template to diff with the last rendered tree
    * @return the diff "parts" to send to the client
    */
-  public Map<String, Object> diffParts(UndeadTemplate newTmpl) {
-    var oldTmpl = this.lastTmpl;
-    this.lastTmpl = newTmpl;
-    var parts = newTmpl.toParts();
-    // if we have an old template diff with new template
-    if(oldTmpl != null) {
-      parts = UndeadTemplate.diff(oldTmpl.toParts(), newTmpl.toParts());
-    }
-    // add title if set
+  public Rendered diffParts(UndeadTemplate newTmpl) {
+    // convert the new template to a rendered tree once and keep that tree as the
+    // baseline for the next diff (rather than re-walking the old template)
+    var oldRendered = this.lastRendered;
+    var newRendered = rendered(newTmpl);
+    var parts = newRendered;
+    // if we have an old tree diff with the new tree
+    if(oldRendered != null) {
+      parts = Rendered.diff(oldRendered, newRendered);
+    }
+    // add title if set (withTitle copies so the baseline is not modified)
     if(this.title != null) {
-      parts.put("t", this.title);
+      parts = parts.withTitle(this.title);
       this.title = null;
     }
     // add events if set
     if(this.events != null) {
-      parts.put("e", this.events);
+      parts = parts.withEvents(this.events);
       this.events = null;
     }
     return parts;
@@ -3,165 +3,263 @@ package run.undead.context;
 import com.google.common.base.Strings;
 import run.undead.config.Config;
 import run.undead.event.SimpleUndeadEvent;
+import run.undead.protocol.Msg;
 import run.undead.protocol.MsgParser;
 import run.undead.protocol.Reply;
 import run.undead.template.UndeadTemplate;
 import run.undead.url.Values;
 import run.undead.view.Meta;
 import okhttp3.HttpUrl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import run.undead.view.View;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * WsHandler handles the websocket request lifecycle for a {@link View}
  */
 public class WsHandler {
+  private static final Logger LOG = LoggerFactory.getLogger(WsHandler.class);
+  // the client sends the fingerprints of its (at most 64) most recently used statics
+  private static final int MAX_CACHED_STATICS = 64;
   private final Config undeadConfig;
-  private WsSender wsSender;
+  // the sender is set by the adaptor (on its threads) and used on the mailbox thread
+  private volatile WsSender wsSender;
+  // the websocket itself (i.e. not queued) so it can be closed after a failure
+  private volatile WsSender transport;
   private WsContext context;
+  // all messages (and the infos and async results of the context) are handled on the mailbox thread
+  private final Mailbox mailbox;
 
   public WsHandler(Config undeadConfig) {
     this.undeadConfig = undeadConfig;
+    this.mailbox = new Mailbox(this::failed, undeadConfig.parallel());
   }
 
+  /**
+   * setWsSender sets the sender of the websocket (once per websocket) which is wrapped in a bounded
+   * queue (see {@link Config#outboundConflateAt} and {@link Config#outboundLimit}) so slow clients
+   * never block rendering
+   * @param wsSender the sender of the websocket
+   */
   public void setWsSender(WsSender wsSender) {
-    this.wsSender = wsSender;
+    this.transport = wsSender;
+    this.wsSender = new Outbound(wsSender, undeadConfig.outboundConflateAt, undeadConfig.outboundLimit);
   }
 
-  public void handleMessage(String message) throws Exception {
-      var msg = new MsgParser().parseJSON(message);
-      switch (msg.event()) {
-        case "heartbeat":
-          wsSender.send(Reply.heartbeat(msg));
-          break;
-        case "phx_join":
-          // check if topic starts with "lv:" or "lvu:"
-          // "lv:" is a live view join
-          // "lvu:" is a live view upload join
-          var prefix = msg.topic().split(":");
-          switch (prefix[0]) {
-            case "lv":
-              // for "lv" joins the payload should include a "url" or "redirect" key
-              // from which we can to look up the View
-              var urlStr = "";
-              if (msg.payload().containsKey("url")) {
-                urlStr = (String) msg.payload().get("url");
-              } else if (msg.payload().containsKey("redirect")) {
-                urlStr = (String) msg.payload().get("redirect");
-              } else {
-                throw new RuntimeException("no url or redirect key found in payload");
-              }
-              // extract the path from the URL and match it using the route matcher
-              var url = HttpUrl.parse(urlStr);
-              var path = url.encodedPath();
-              var view = undeadConfig.routeMatcher.matches(path);
-              if (view == null) {
-                throw new RuntimeException("unable to find view for path:" + path + " url:" + urlStr);
-              }
-
-              // get data from params
-              var params = (Map) msg.payload().get("params");
-              if (params == null) {
-                throw new RuntimeException("params not present in payload");
-              }
-
-              // TODO decode session
-              var session = (String) msg.payload().get("session");
-              // TODO pull path params from url
-              var pathParams = undeadConfig.routeMatcher.pathParams(path);
-              // merge path params into params
-              params.putAll(pathParams);
-
-              // setup WS context
-              context = new WsContext(msg.topic(), urlStr, view);
-              context.joinRef = msg.joinRef();
-              context.msgRef = msg.msgRef();
-              context.csrfToken = (String) params.get("_csrf_token");
-              context.view = view;
-              context.sender = wsSender;
-              context.pubsub = undeadConfig.pubsub;
-              // TODO get session data and params
-
-              // lv: join messages get a mount => handleParams => render
-              view.mount(context, Map.of(), params);
-              view.handleParams(context, url.uri(), params);
-              var content = view.render(new Meta());
-
-              // instead of serializing as HTML string, we send back the parts data structure
-              wsSender.send(Reply.rendered(msg, context.diffParts(content)));
-              break;
-            // TODO case "lvu" i.e. uploads
-            default: // unknown phx_join topic
-              throw new RuntimeException("unknown phx_join topic");
-          }
-          break;
-        case "event":
-          // determine type of event and further details
-          var payloadEventType = (String) msg.payload().get("type");
-          var payloadEvent = (String) msg.payload().get("event");
-          // TODO handle components
-          // var cid = (String)msg.payload().get("cid");
-          UndeadTemplate tmpl;
-          switch (payloadEventType) {
-            case "click":
-            case "keyup":
-            case "keydown":
-            case "blur":
-            case "focus":
-            case "hook":
-              // get value from payload with should be a map
-              var payloadValues = Values.from((Map<String, String>) msg.payload().get("value"));
-              // convert the value map to a url.Values
-
-              // check if the click is a lv:clear-flash event
-              // which does not invoke HandleEvent but should
-              // set the flash value to "" and send a responseDiff
-              if (payloadEventType.equals("lv:clear-flash")) {
-                var flashKey = payloadValues.get("key");
-                // TODO implement clear flash
-                throw new RuntimeException("clear flash not implemented");
-              } else {
-                // handle the event
-                this.context.view.handleEvent(context, new SimpleUndeadEvent(payloadEvent, payloadValues));
-              }
-              break;
-            case "form":
-              // for form events the payload value is a string that needs to be parsed into the data
-              var values = Values.from((String) msg.payload().get("value"));
-              // handle uploads before calling calling handleEvent
-              // TODO uploads
-              this.context.view.handleEvent(context, new SimpleUndeadEvent(payloadEvent, values));
-              break;
-            default:
-              throw new RuntimeException("unknown event type:" + payloadEventType);
-          }
-          // check if we have a redirect
-          if (context != null && !Strings.isNullOrEmpty(context.redirect)) {
-            wsSender.send(Reply.redirect(msg, context.redirect));
-            break;
-          }
-          // otherwise rerender
-          var content = context.view.render(new Meta());
-          wsSender.send(Reply.replyDiff(msg, context.diffParts(content)));
-          break;
-        default:
-          throw new RuntimeException("unhandled event:" + msg.event());
+  /**
+   * handleMessage posts the message to the mailbox of this session and returns immediately.  Messages
+   * are handled one at a time in the order they were received along with the infos and async results
+   * of the {@link View}.
+   * @param message the raw websocket message
+   */
+  public void handleMessage(String message) {
+    this.mailbox.post(() -> {
+      try {
+        handle(message);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
       }
+    });
+  }
+
+  /**
+   * sendHeartbeat sends the reply to a heartbeat without waiting for the mailbox (so busy sessions still
+   * answer heartbeats) but through the outbound queue so it is ordered with (and bounded like) the other
+   * messages of the websocket
+   * @param reply the heartbeat reply (see {@link run.undead.protocol.Heartbeat#reply})
+   */
+  public void sendHeartbeat(String reply) {
+    this.wsSender.send(reply);
+  }
+
+  private void handle(String message) throws IOException {
+    var msg = MsgParser.shared().parseJSON(message);
+    switch (msg.event()) {
+      case "heartbeat":
+        wsSender.send(Reply.heartbeat(msg));
+        break;
+      case "phx_join":
+        // check if topic starts with "lv:" or "lvu:"
+        // "lv:" is a live view join
+        // "lvu:" is a live view upload join
+        var prefix = msg.topic().split(":");
+        switch (prefix[0]) {
+          case "lv":
+            // for "lv" joins the payload should include a "url" or "redirect" key
+            // from which we can to look up the View
+            var urlStr = "";
+            if (msg.payload().containsKey("url")) {
+              urlStr = (String) msg.payload().get("url");
+            } else if (msg.payload().containsKey("redirect")) {
+              urlStr = (String) msg.payload().get("redirect");
+            } else {
+              throw new RuntimeException("no url or redirect key found in payload");
+            }
+            // extract the path from the URL and match it using the route matcher
+            var url = HttpUrl.parse(urlStr);
+            var path = url.encodedPath();
+            var view = undeadConfig.routeMatcher.matches(path);
+            if (view == null) {
+              throw new RuntimeException("unable to find view for path:" + path + " url:" + urlStr);
+            }
+
+            // get data from params
+            var params = (Map) msg.payload().get("params");
+            if (params == null) {
+              throw new RuntimeException("params not present in payload");
+            }
+
+            // TODO decode session
+            var session = (String) msg.payload().get("session");
+            // TODO pull path params from url
+            var pathParams = undeadConfig.routeMatcher.pathParams(path);
+            // merge path params into params
+            params.putAll(pathParams);
+            // the client advertises the statics it has cached (these are not params of the View)
+            var cachedStatics = cachedStatics(params.remove("_statics"));
+
+            // setup WS context
+            context = new WsContext(msg.topic(), urlStr, view);
+            context.joinRef = msg.joinRef();
+            context.msgRef = msg.msgRef();
+            context.csrfToken = (String) params.get("_csrf_token");
+            context.view = view;
+            context.sender = wsSender;
+            context.mailbox = mailbox;
+            context.renderWindow(undeadConfig.renderWindow);
+            context.pubsub = undeadConfig.pubsub;
+            context.sharedDiffs = undeadConfig.sharedDiffs;
+            context.sentStatics.addAll(cachedStatics);
+            // TODO get session data and params
+
+            // lv: join messages get a mount => handleParams => render
+            view.mount(context, Map.of(), params);
+            view.handleParams(context, url.uri(), params);
+            var content = view.render(new Meta(context.assigns()));
+
+            // instead of serializing as HTML string, we send back the parts data structure
+            wsSender.send(Reply.rendered(msg, context.diffParts(content), context.sentStatics()));
+            break;
+          // TODO case "lvu" i.e. uploads
+          default: // unknown phx_join topic
+            throw new RuntimeException("unknown phx_join topic");
+        }
+        break;
+      case "event":
+        handleEvent(msg);
+        break;
+      default:
+        throw new RuntimeException("unhandled event:" + msg.event());
     }
+  }
 
-  public void handleError(Object error) {
-    if (this.context != null) {
-      this.context.handleError(error);
+  /**
+   * cachedStatics parses the (hex) fingerprints of the statics the client has cached ignoring
+   * any that are not valid fingerprints (and any beyond the number the client sends)
+   */
+  static Set<Long> cachedStatics(Object fingerprints) {
+    if (!(fingerprints instanceof List<?> list)) {
+      return Set.of();
     }
+    var all = list.size() > MAX_CACHED_STATICS ? list.subList(list.size() - MAX_CACHED_STATICS, list.size()) : list;
+    var cached = new HashSet<Long>(all.size() * 2);
+    for (var fp : all) {
+      try {
+        cached.add(Long.parseUnsignedLong(String.valueOf(fp), 16));
+      } catch (NumberFormatException e) {
+        // not a fingerprint so the statics will be sent
+      }
+    }
+    return cached;
   }
 
-  public void handleClose() {
-    if (this.context != null) {
-      this.context.handleClose();
+  private void handleEvent(Msg msg) {
+    // determine type of event and further details
+    var payloadEventType = (String) msg.payload().get("type");
+    var payloadEvent = (String) msg.payload().get("event");
+    // TODO handle components
+    // var cid = (String)msg.payload().get("cid");
+    UndeadTemplate tmpl;
+    switch (payloadEventType) {
+      case "click":
+      case "keyup":
+      case "keydown":
+      case "blur":
+      case "focus":
+      case "hook":
+        // get value from payload with should be a map
+        var payloadValues = Values.from((Map<String, String>) msg.payload().get("value"));
+        // convert the value map to a url.Values
+
+        // check if the click is a lv:clear-flash event
+        // which does not invoke HandleEvent but should
+        // set the flash value to "" and send a responseDiff
+        if (payloadEventType.equals("lv:clear-flash")) {
+          var flashKey = payloadValues.get("key");
+          // TODO implement clear flash
+          throw new RuntimeException("clear flash not implemented");
+        } else {
+          // handle the event
+          this.context.view.handleEvent(context, new SimpleUndeadEvent(payloadEvent, payloadValues));
+        }
+        break;
+      case "form":
+        // for form events the payload value is a string that needs to be parsed into the data
+        var values = Values.from((String) msg.payload().get("value"));
+        // handle uploads before calling calling handleEvent
+        // TODO uploads
+        this.context.view.handleEvent(context, new SimpleUndeadEvent(payloadEvent, values));
+        break;
+      default:
+        throw new RuntimeException("unknown event type:" + payloadEventType);
     }
+    // check if we have a redirect
+    if (context != null && !Strings.isNullOrEmpty(context.redirect)) {
+      wsSender.send(Reply.redirect(msg, context.redirect));
+      return;
+    }
+    // otherwise rerender
+    var content = context.view.render(new Meta(context.assigns()));
+    wsSender.send(Reply.replyDiff(msg, context.diffParts(content), context.sentStatics()));
   }
 
+  /**
+   * handleError closes the {@link View} once the messages that are already in the mailbox are handled
+   * @param error the error
+   */
+  public void handleError(Object error) {
+    this.mailbox.post(() -> failed(error));
+  }
 
+  /**
+   * handleClose closes the {@link View} once the messages that are already in the mailbox are handled
+   */
+  public void handleClose() {
+    this.mailbox.post(() -> {
+      if (this.context != null) {
+        this.context.handleClose();
+      }
+      this.mailbox.close();
+    });
+  }
 
+  // called on the mailbox thread
+  private void failed(Object error) {
+    LOG.error("undead websocket failed", error instanceof Throwable t ? t : new RuntimeException(String.valueOf(error)));
+    if (this.context != null) {
+      this.context.handleError(error);
+    }
+    this.mailbox.close();
+    // the mailbox no longer handles messages so close the websocket and let the client rejoin
+    if (this.transport != null) {
+      this.transport.close("server error");
+    }
+  }
 }
@@ -1,5 +1,7 @@
 package run.undead.context;
 
+import java.util.function.Consumer;
+
 /**
  * WsSender is an interface for sending String data to the websocket client.
  */
@@ -10,4 +12,28 @@ public interface WsSender {
    * @param data the data to send
    */
   void send(String data);
+
+  /**
+   * Send string data to the client without waiting for it to be written.  The default
+   * implementation sends synchronously.
+   * @param data the data to send
+   * @param written called once the data is written with null or the error if the write failed
+   */
+  default void send(String data, Consumer<Throwable> written) {
+    try {
+      send(data);
+    } catch (RuntimeException e) {
+      written.accept(e);
+      return;
+    }
+    written.accept(null);
+  }
+
+  /**
+   * Close the websocket (e.g. because the client cannot keep up with the data sent to it).
+   * @param reason the reason for closing
+   */
+  default void close(String reason) {
+    // noop by default
+  }
 }
@@ -46,5 +46,6 @@ public class JavalinRequestAdaptor implements RequestAdaptor {
   @Override
   public void willRedirect(String destURL) {
     this.redirectURL = destURL;
+    this.ctx.redirect(destURL);
   }
 }
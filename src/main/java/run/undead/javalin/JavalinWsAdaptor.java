@@ -2,6 +2,7 @@ package run.undead.javalin;
 
 import run.undead.config.Config;
 import run.undead.context.WsHandler;
+import run.undead.protocol.Heartbeat;
 import io.javalin.websocket.WsConfig;
 import run.undead.view.View;
 
@@ -31,7 +32,6 @@ public class JavalinWsAdaptor {
       if(handler == null) {
         return;
       }
-      handler.setWsSender(new JavalinWsSender(ctx));
       // give socket a chance to handle error
       handler.handleError(ctx.error());
       clearHandler(ctx.getSessionId());
@@ -46,11 +46,17 @@ public class JavalinWsAdaptor {
       clearHandler(ctx.getSessionId());
     });
     wsConfig.onMessage(ctx -> {
+      // answer heartbeats (most of the messages of idle sockets) without parsing them or
+      // waiting for the mailbox of the handler
+      var heartbeat = Heartbeat.reply(ctx.message());
+      if (heartbeat != null) {
+        getOrCreateHandler(ctx).sendHeartbeat(heartbeat);
+        return;
+      }
       if(undeadConf.debug != null) {
         undeadConf.debug.accept("Raw ws message: " + ctx.message());
       }
-      var handler = getOrCreateHandler(ctx.getSessionId());
-      handler.setWsSender(new JavalinWsSender(ctx));
+      var handler = getOrCreateHandler(ctx);
       handler.handleMessage(ctx.message());
     });
   }
@@ -59,8 +65,13 @@ public class JavalinWsAdaptor {
     return handlerRegistry.get(sessionId);
   }
 
-  private WsHandler getOrCreateHandler(String sessionId) {
-    return handlerRegistry.computeIfAbsent(sessionId, k -> new WsHandler(undeadConf));
+  private WsHandler getOrCreateHandler(io.javalin.websocket.WsContext ctx) {
+    return handlerRegistry.computeIfAbsent(ctx.getSessionId(), k -> {
+      // the sender (and its outbound queue) is per websocket
+      var handler = new WsHandler(undeadConf);
+      handler.setWsSender(new JavalinWsSender(ctx));
+      return handler;
+    });
   }
 
   private void clearHandler(String sessionId) {
@@ -1,8 +1,12 @@
 package run.undead.javalin;
 
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 import run.undead.context.WsSender;
 import io.javalin.websocket.WsContext;
 
+import java.util.function.Consumer;
+
 /**
  * JavalinWsSender is an implementation of {@link WsSender} for Javalin websockets.
  */
@@ -18,4 +22,24 @@ public class JavalinWsSender implements WsSender {
     ws.send(data);
   }
 
+  @Override
+  public void send(String data, Consumer<Throwable> written) {
+    ws.session.getRemote().sendString(data, new WriteCallback() {
+      @Override
+      public void writeFailed(Throwable x) {
+        written.accept(x);
+      }
+
+      @Override
+      public void writeSuccess() {
+        written.accept(null);
+      }
+    });
+  }
+
+  @Override
+  public void close(String reason) {
+    ws.closeSession(StatusCode.TRY_AGAIN_LATER, reason);
+  }
+
 }
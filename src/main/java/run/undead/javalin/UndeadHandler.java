@@ -38,14 +38,15 @@ public class UndeadHandler implements Handler {
 
   @Override
   public void handle(@NotNull Context ctx) throws Exception {
-    var res = HttpHandler.handle(
+    ctx.contentType("text/html; charset=utf-8");
+    // stream the rendered HTML bytes straight to the response
+    this.config.parallel().call(() -> HttpHandler.handle(
         this.view.getClass().newInstance(),
         this.config.mainLayout,
         new JavalinRequestAdaptor(ctx),
         this.pageTitle,
-        this.config.wrapperTemplate
-    );
-    ctx.contentType("text/html");
-    ctx.result(res);
+        this.config.wrapperTemplate,
+        ctx.outputStream()
+    ));
   }
 }
@@ -1,7 +1,10 @@
 package run.undead.js;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.squareup.moshi.JsonAdapter;
 import com.squareup.moshi.Moshi;
+import run.undead.template.Escaper;
 import run.undead.template.UndeadTemplate;
 import run.undead.view.View;
 
@@ -54,6 +57,12 @@ import java.util.List;
  *    <li>{@link JS#transition}</li>
  *  </ul>
  *
+ * JS chains that never change (e.g. the same command on every row of a table) can be frozen with {@link #freeze()}
+ * so the escaped JSON is computed once (and shared by all equal frozen chains) instead of on every render:
+ * <pre>{@code
+ *   private static final JS SELECT = new JS().toggle().push("select").freeze();
+ * }</pre>
+ *
  */
 public class JS {
 
@@ -81,10 +90,22 @@ public class JS {
       .build();
   protected final static JsonAdapter<List> listAdaptor = moshi.adapter(List.class).serializeNulls();
 
+  // escaped JSON of frozen chains shared by all equal chains
+  private final static Interner<String> attributes = Interners.newWeakInterner();
+
   private final List<Cmd> cmds;
+  // the JSON and escaped JSON of a frozen chain (or null if not frozen)
+  private final String json;
+  private final String attribute;
 
   public JS () {
-    this.cmds = new ArrayList<>();
+    this(new ArrayList<>(), null, null);
+  }
+
+  private JS(List<Cmd> cmds, String json, String attribute) {
+    this.cmds = cmds;
+    this.json = json;
+    this.attribute = attribute;
   }
 
 
@@ -93,9 +114,55 @@ public class JS {
    * @return
    */
   public String toJSON() {
+    if (this.json != null) {
+      return this.json;
+    }
     return listAdaptor.toJson(cmds);
   }
 
+  /**
+   * toAttribute returns the HTML escaped JSON of the JS commands as embedded in templates.  For
+   * frozen chains this is computed once and is the same instance for all equal frozen chains.
+   * @return the escaped JSON of the JS commands
+   */
+  public String toAttribute() {
+    if (this.attribute != null) {
+      return this.attribute;
+    }
+    return Escaper.escape(toJSON());
+  }
+
+  /**
+   * freeze returns an immutable copy of this chain whose JSON (and escaped JSON) is computed once
+   * instead of every time it is rendered.  The frozen chain only keeps the JSON (not the commands) so
+   * later changes to the options of the commands (e.g. the detail Map of {@link DispatchOpts}) do not
+   * change it.  Adding commands to a frozen chain throws an exception.
+   * @return the frozen JS instance
+   */
+  public JS freeze() {
+    if (frozen()) {
+      return this;
+    }
+    var json = listAdaptor.toJson(this.cmds);
+    return new JS(List.of(), json, attributes.intern(Escaper.escape(json)));
+  }
+
+  /**
+   * frozen returns true if this chain was created by {@link #freeze()}
+   * @return true if the chain is frozen
+   */
+  public boolean frozen() {
+    return this.attribute != null;
+  }
+
+  private JS add(Cmd cmd) {
+    if (frozen()) {
+      throw new RuntimeException("cannot add commands to a frozen JS");
+    }
+    this.cmds.add(cmd);
+    return this;
+  }
+
 
   /**
    * addClass adds css classes to DOM elements
@@ -104,7 +171,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS addClass(AddClassOpts addClassOpts) {
-    this.cmds.add(addClassOpts);
+    add(addClassOpts);
     return this;
   }
 
@@ -114,7 +181,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS addClass(String classNames) {
-    this.cmds.add(new AddClassOpts(classNames));
+    add(new AddClassOpts(classNames));
     return this;
   }
 
@@ -125,7 +192,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS dispatch(DispatchOpts dispatchOpts) {
-    this.cmds.add(dispatchOpts);
+    add(dispatchOpts);
     return this;
   }
 
@@ -135,7 +202,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS dispatch(String event) {
-    this.cmds.add(new DispatchOpts(event));
+    add(new DispatchOpts(event));
     return this;
   }
 
@@ -146,7 +213,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS exec(ExecOpts execOpts) {
-    this.cmds.add(execOpts);
+    add(execOpts);
     return this;
   }
 
@@ -156,7 +223,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS exec(String attr) {
-    this.cmds.add(new ExecOpts(attr));
+    add(new ExecOpts(attr));
     return this;
   }
 
@@ -167,7 +234,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS focusFirst(FocusFirstOpts focusFirstOpts) {
-    this.cmds.add(focusFirstOpts);
+    add(focusFirstOpts);
     return this;
   }
 
@@ -176,7 +243,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS focusFirst() {
-    this.cmds.add(new FocusFirstOpts());
+    add(new FocusFirstOpts());
     return this;
   }
 
@@ -185,7 +252,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS focus() {
-    this.cmds.add(new FocusOpts());
+    add(new FocusOpts());
     return this;
   }
 
@@ -195,7 +262,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS focus(String to) {
-    this.cmds.add(new FocusOpts(to));
+    add(new FocusOpts(to));
     return this;
   }
 
@@ -206,7 +273,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS hide(HideOpts hideOpts) {
-    this.cmds.add(hideOpts);
+    add(hideOpts);
     return this;
   }
 
@@ -215,7 +282,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS hide() {
-    this.cmds.add(new HideOpts());
+    add(new HideOpts());
     return this;
   }
 
@@ -227,7 +294,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS navigate(NavigateOpts navigateOpts) {
-    this.cmds.add(navigateOpts);
+    add(navigateOpts);
     return this;
   }
 
@@ -238,7 +305,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS navigate(String href) {
-    this.cmds.add(new NavigateOpts(href));
+    add(new NavigateOpts(href));
     return this;
   }
 
@@ -249,7 +316,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS patch(PatchOpts patchOpts) {
-    this.cmds.add(patchOpts);
+    add(patchOpts);
     return this;
   }
 
@@ -259,7 +326,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS patch(String href) {
-    this.cmds.add(new PatchOpts(href));
+    add(new PatchOpts(href));
     return this;
   }
 
@@ -268,7 +335,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS popFocus() {
-    this.cmds.add(new PopFocusOpts());
+    add(new PopFocusOpts());
     return this;
   }
 
@@ -280,7 +347,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS pushFocus(PushFocusOpts pushFocusOpts) {
-    this.cmds.add(pushFocusOpts);
+    add(pushFocusOpts);
     return this;
   }
 
@@ -290,7 +357,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS pushFocus(String to) {
-    this.cmds.add(new PushFocusOpts(to));
+    add(new PushFocusOpts(to));
     return this;
   }
 
@@ -301,7 +368,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS push(PushOpts pushOpts) {
-    this.cmds.add(pushOpts);
+    add(pushOpts);
     return this;
   }
 
@@ -311,7 +378,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS push(String event) {
-    this.cmds.add(new PushOpts(event));
+    add(new PushOpts(event));
     return this;
   }
 
@@ -322,7 +389,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS removeAttr(RemoveAttrOpts removeAttrOpts) {
-    this.cmds.add(removeAttrOpts);
+    add(removeAttrOpts);
     return this;
   }
 
@@ -332,7 +399,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS removeAttr(String name) {
-    this.cmds.add(new RemoveAttrOpts(name));
+    add(new RemoveAttrOpts(name));
     return this;
   }
 
@@ -343,7 +410,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS removeClass(RemoveClassOpts removeClassOpts) {
-    this.cmds.add(removeClassOpts);
+    add(removeClassOpts);
     return this;
   }
 
@@ -353,7 +420,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS removeClass(String classNames) {
-    this.cmds.add(new RemoveClassOpts(classNames));
+    add(new RemoveClassOpts(classNames));
     return this;
   }
 
@@ -364,7 +431,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS setAttr(SetAttrOpts setAttrOpts) {
-    this.cmds.add(setAttrOpts);
+    add(setAttrOpts);
     return this;
   }
 
@@ -375,7 +442,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS setAttr(String name, String value) {
-    this.cmds.add(new SetAttrOpts(name, value));
+    add(new SetAttrOpts(name, value));
     return this;
   }
 
@@ -386,7 +453,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS show(ShowOpts showOpts) {
-    this.cmds.add(showOpts);
+    add(showOpts);
     return this;
   }
 
@@ -395,7 +462,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS show() {
-    this.cmds.add(new ShowOpts());
+    add(new ShowOpts());
     return this;
   }
 
@@ -406,7 +473,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS toggle(ToggleOpts toggleOpts) {
-    this.cmds.add(toggleOpts);
+    add(toggleOpts);
     return this;
   }
 
@@ -415,7 +482,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS toggle() {
-    this.cmds.add(new ToggleOpts());
+    add(new ToggleOpts());
     return this;
   }
 
@@ -426,7 +493,7 @@ public class JS {
    * @return the JS instance for chaining
    */
   public JS transition(TransitionOpts transitionOpts) {
-    this.cmds.add(transitionOpts);
+    add(transitionOpts);
     return this;
   }
 
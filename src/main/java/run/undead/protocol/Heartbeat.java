@@ -0,0 +1,39 @@
+package run.undead.protocol;
+
+/**
+ * Heartbeat answers Phoenix heartbeat frames (i.e. <code>[null,"ref","phoenix","heartbeat",{}]</code>)
+ * without parsing them so adaptors can reply to heartbeats before looking up the connection's
+ * handler.  The reply is the same as {@link Reply#heartbeat}.
+ */
+public final class Heartbeat {
+  private static final String PREFIX = "[null,\"";
+  private static final String SUFFIX = "\",\"phoenix\",\"heartbeat\",{}]";
+  private static final String REPLY_SUFFIX = "\",\"phoenix\",\"phx_reply\",{\"status\":\"ok\"}]";
+
+  private Heartbeat() {
+  }
+
+  /**
+   * reply returns the reply to the frame if it is a heartbeat otherwise null
+   * @param frame the frame received from the client
+   * @return the reply or null if the frame is not a heartbeat
+   */
+  public static String reply(String frame) {
+    var refEnd = frame.length() - SUFFIX.length();
+    if (refEnd <= PREFIX.length() || !frame.startsWith(PREFIX) || !frame.startsWith(SUFFIX, refEnd)) {
+      return null;
+    }
+    // the ref is copied as is so it must not need escaping
+    for (var i = PREFIX.length(); i < refEnd; i++) {
+      var c = frame.charAt(i);
+      if (c == '"' || c == '\\' || c < ' ') {
+        return null;
+      }
+    }
+    return new StringBuilder(refEnd + REPLY_SUFFIX.length())
+        .append(PREFIX)
+        .append(frame, PREFIX.length(), refEnd)
+        .append(REPLY_SUFFIX)
+        .toString();
+  }
+}
@@ -0,0 +1,65 @@
+package run.undead.protocol;
+
+import com.squareup.moshi.JsonAdapter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * LazyPayload is the payload of a {@link Msg} parsed by {@link MsgParser}.  It keeps the raw JSON of each
+ * value and only decodes (and caches) a value when it is read so values that are never read (e.g. the
+ * form <code>value</code> of an event the {@link run.undead.view.View} ignores) are never decoded.
+ */
+class LazyPayload extends AbstractMap<String, Object> {
+  private final Map<String, String> raw;
+  private final Map<String, Object> decoded = new HashMap<>();
+  private final JsonAdapter<Object> adapter;
+
+  LazyPayload(Map<String, String> raw, JsonAdapter<Object> adapter) {
+    this.raw = raw;
+    this.adapter = adapter;
+  }
+
+  @Override
+  public Object get(Object key) {
+    if (this.decoded.containsKey(key)) {
+      return this.decoded.get(key);
+    }
+    var json = this.raw.get(key);
+    if (json == null) {
+      return null;
+    }
+    try {
+      var value = this.adapter.fromJson(json);
+      this.decoded.put((String) key, value);
+      return value;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return this.raw.containsKey(key);
+  }
+
+  @Override
+  public int size() {
+    return this.raw.size();
+  }
+
+  @Override
+  public Set<Entry<String, Object>> entrySet() {
+    // decodes all the values
+    var entries = new LinkedHashSet<Entry<String, Object>>();
+    for (var key : this.raw.keySet()) {
+      entries.add(new SimpleImmutableEntry<>(key, get(key)));
+    }
+    return entries;
+  }
+}
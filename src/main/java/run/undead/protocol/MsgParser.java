@@ -1,62 +1,109 @@
 package run.undead.protocol;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.squareup.moshi.JsonAdapter;
 import com.squareup.moshi.JsonDataException;
+import com.squareup.moshi.JsonReader;
 import com.squareup.moshi.Moshi;
+import okio.Buffer;
 
 import java.io.IOException;
-import java.util.List;
-import java.util.Map;
+import java.util.LinkedHashMap;
 
+/**
+ * MsgParser parses Phoenix websocket frames (i.e. <code>[joinRef, msgRef, topic, event, payload]</code>)
+ * into {@link Msg}s.  Frames are read with a streaming {@link JsonReader} and the values of the payload
+ * are only decoded when they are read (see {@link Msg#payload()}).  MsgParser is stateless and thread-safe so
+ * a single instance (see {@link #shared()}) can be used for all connections.
+ */
 public class MsgParser {
-  private final Moshi moshi;
-  private final JsonAdapter<List> jsonAdapter;
+  private static final MsgParser SHARED = new MsgParser();
+
+  // the common events and topics are returned as constants rather than new Strings
+  private static final String[] EVENTS = {"event", "heartbeat", "phx_join", "phx_leave"};
+  private static final JsonReader.Options EVENT_OPTIONS = JsonReader.Options.of(EVENTS);
+  private static final String[] TOPICS = {"phoenix"};
+  private static final JsonReader.Options TOPIC_OPTIONS = JsonReader.Options.of(TOPICS);
+  // view topics repeat on every message of a connection
+  private static final Interner<String> topics = Interners.newWeakInterner();
+
+  private final JsonAdapter<Object> valueAdapter;
 
   public MsgParser() {
-    this.moshi = new Moshi.Builder().build();
-    this.jsonAdapter = moshi.adapter(List.class);
+    this.valueAdapter = new Moshi.Builder().build().adapter(Object.class);
+  }
+
+  /**
+   * shared returns the MsgParser shared by all connections
+   * @return the shared MsgParser
+   */
+  public static MsgParser shared() {
+    return SHARED;
   }
 
   public Msg parseJSON(String json) throws IOException, JsonDataException {
-    var raw = jsonAdapter.fromJson(json);
-    if (raw.size() != 5) {
+    var reader = JsonReader.of(new Buffer().writeUtf8(json));
+    if (reader.peek() != JsonReader.Token.BEGIN_ARRAY) {
       throw new JsonDataException("Invalid format: should be json array with 5 elements");
     }
-    var joinRef = raw.get(0);
-    var msgRef = raw.get(1);
-    var topic = raw.get(2);
-    var event = raw.get(3);
-    var payload = raw.get(4);
-
-    if (joinRef != null) {
-      switch (joinRef) {
-        case String s -> {
-        }
-        default -> throw new JsonDataException("joinRef must be a string");
-      }
+    reader.beginArray();
+    var joinRef = nextString(reader, "joinRef", true);
+    var msgRef = nextString(reader, "msgRef", false);
+    var topic = select(reader, TOPIC_OPTIONS, TOPICS, "topic");
+    topic = topics.intern(topic);
+    var event = select(reader, EVENT_OPTIONS, EVENTS, "event");
+    var payload = nextPayload(reader);
+    if (reader.hasNext()) {
+      throw new JsonDataException("Invalid format: should be json array with 5 elements");
     }
-    switch (msgRef) {
-      case String s -> {
-      }
-      default -> throw new JsonDataException("msgRef must be a string");
+    reader.endArray();
+    return new Msg(joinRef, msgRef, topic, event, payload);
+  }
+
+  private static String nextString(JsonReader reader, String name, boolean nullable) throws IOException {
+    if (!reader.hasNext()) {
+      throw new JsonDataException("Invalid format: should be json array with 5 elements");
     }
-    switch (topic) {
-      case String s -> {
-      }
-      default -> throw new JsonDataException("topic must be a string");
+    if (nullable && reader.peek() == JsonReader.Token.NULL) {
+      return reader.nextNull();
     }
-    switch (event) {
-      case String s -> {
-      }
-      default -> throw new JsonDataException("event must be a string");
+    if (reader.peek() != JsonReader.Token.STRING) {
+      throw new JsonDataException(name + " must be a string");
     }
-    switch (payload) {
-      case Map m -> {
+    return reader.nextString();
+  }
+
+  private static String select(JsonReader reader, JsonReader.Options options, String[] values, String name) throws IOException {
+    if (reader.hasNext() && reader.peek() == JsonReader.Token.STRING) {
+      var index = reader.selectString(options);
+      if (index >= 0) {
+        return values[index];
       }
-      default -> throw new JsonDataException("payload must be a map");
     }
+    return nextString(reader, name, false);
+  }
 
-    return new Msg(
-        (String) joinRef, (String) msgRef, (String) topic, (String) event, (Map) payload);
+  /**
+   * nextPayload reads the top-level keys of the payload keeping the (raw) JSON of each value
+   * to be decoded when it is read
+   */
+  private LazyPayload nextPayload(JsonReader reader) throws IOException {
+    if (!reader.hasNext()) {
+      throw new JsonDataException("Invalid format: should be json array with 5 elements");
+    }
+    if (reader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+      throw new JsonDataException("payload must be a map");
+    }
+    var raw = new LinkedHashMap<String, String>();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      var name = reader.nextName();
+      try (var source = reader.nextSource()) {
+        raw.put(name, source.readUtf8());
+      }
+    }
+    reader.endObject();
+    return new LazyPayload(raw, this.valueAdapter);
   }
 }
@@ -1,77 +1,160 @@
 package run.undead.protocol;
 
-import com.squareup.moshi.JsonAdapter;
-import com.squareup.moshi.Moshi;
+import com.squareup.moshi.JsonWriter;
+import okio.Buffer;
+import run.undead.template.Rendered;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashSet;
+import java.util.Set;
 
+/**
+ * Reply builds the messages sent to the client.  Each message is streamed with a {@link JsonWriter}
+ * straight into an okio {@link Buffer} including the rendered tree so no intermediate Lists or Maps
+ * are created.  The buffer's segments are recycled by okio, but the {@link run.undead.context.WsSender}
+ * takes a String so every message is still decoded into a new String once.
+ */
 public class Reply {
-  private static final Moshi moshi = new Moshi.Builder().build();
-  private static final JsonAdapter<List> listAdaptor = moshi.adapter(List.class);
-
-  public static String rendered(Msg orig, Map parts) {
-    var data = List.of(
-        orig.joinRef(),
-        orig.msgRef(),
-        orig.topic(),
-        "phx_reply",
-        Map.of(
-            "status", "ok",
-            "response", Map.of("rendered", parts)
-        )
-    );
-    return listAdaptor.toJson(data);
+
+  public static String rendered(Msg orig, Rendered parts) {
+    return rendered(orig, parts, new HashSet<>());
+  }
+
+  /**
+   * rendered returns the join reply for the rendered tree omitting the statics the client has cached
+   * (i.e. writing their fingerprint instead, see {@link Rendered#toJson(JsonWriter, Set)})
+   * @param orig the join message
+   * @param parts the rendered tree
+   * @param cached the fingerprints of the statics cached by the client (updated with the statics written)
+   * @return the join reply
+   */
+  public static String rendered(Msg orig, Rendered parts, Set<Long> cached) {
+    return message(orig.joinRef(), orig.msgRef(), orig.topic(), "phx_reply", ok("rendered", w -> write(w, parts, cached)));
   }
 
   public static String heartbeat(Msg orig) {
-    var data = new ArrayList();
-    data.add(null);
-    data.add(orig.msgRef());
-    data.add("phoenix");
-    data.add("phx_reply");
-    data.add(Map.of("status", "ok"));
-    return listAdaptor.toJson(data);
+    return message(null, orig.msgRef(), "phoenix", "phx_reply", ok(null, null));
   }
 
   public static String redirect(Msg orig, String url) {
-    var data = new ArrayList();
-    data.add(orig.joinRef());
-    data.add(orig.msgRef());
-    data.add(orig.topic());
-    data.add("phx_reply");
-    data.add(Map.of(
-        "status", "ok",
-        "response", Map.of(
-            "to", url
-        )
-    ));
-    return listAdaptor.toJson(data);
+    return message(orig.joinRef(), orig.msgRef(), orig.topic(), "phx_reply", ok("to", w -> w.value(url)));
+  }
+
+  public static String replyDiff(Msg orig, Rendered parts) {
+    return replyDiff(orig, parts, new HashSet<>());
+  }
+
+  /**
+   * replyDiff returns the reply to an event with the diff omitting the statics the client has cached
+   * @param orig the event message
+   * @param parts the diff
+   * @param cached the fingerprints of the statics cached by the client (updated with the statics written)
+   * @return the event reply
+   */
+  public static String replyDiff(Msg orig, Rendered parts, Set<Long> cached) {
+    return message(orig.joinRef(), orig.msgRef(), orig.topic(), "phx_reply", ok("diff", w -> write(w, parts, cached)));
+  }
+
+  /**
+   * diff returns a diff message for the topic with an already serialized diff (see {@link #toJson})
+   * @param topic the topic of the message
+   * @param diffJson the serialized diff
+   * @return the diff message
+   */
+  public static String diff(String topic, String diffJson) {
+    // empty joinRef and msgRef
+    return message(null, null, topic, "diff", w -> {
+      try (var sink = w.valueSink()) {
+        sink.writeUtf8(diffJson);
+      }
+    });
+  }
+
+  /**
+   * toJson serializes the diff so that it can be shared by multiple messages
+   * @param diff the diff to serialize
+   * @return the serialized diff
+   */
+  public static String toJson(Rendered diff) {
+    var buffer = new Buffer();
+    try (var writer = JsonWriter.of(buffer)) {
+      write(writer, diff);
+    } catch (IOException e) {
+      // okio Buffers do not throw IOExceptions
+      throw new UncheckedIOException(e);
+    }
+    return buffer.readUtf8();
+  }
+
+  public static String diff(String topic, Rendered diff) {
+    return diff(topic, diff, new HashSet<>());
+  }
+
+  /**
+   * diff returns a diff message for the topic omitting the statics the client has cached
+   * @param topic the topic of the message
+   * @param diff the diff
+   * @param cached the fingerprints of the statics cached by the client (updated with the statics written)
+   * @return the diff message
+   */
+  public static String diff(String topic, Rendered diff, Set<Long> cached) {
+    // empty joinRef and msgRef
+    return message(null, null, topic, "diff", w -> write(w, diff, cached));
+  }
+
+  /**
+   * message streams the message array (i.e. <code>[joinRef, msgRef, topic, event, payload]</code>)
+   */
+  private static String message(String joinRef, String msgRef, String topic, String event, Payload payload) {
+    var buffer = new Buffer();
+    try (var writer = JsonWriter.of(buffer)) {
+      writer.beginArray();
+      writer.value(joinRef);
+      writer.value(msgRef);
+      writer.value(topic);
+      writer.value(event);
+      payload.write(writer);
+      writer.endArray();
+    } catch (IOException e) {
+      // okio Buffers do not throw IOExceptions
+      throw new UncheckedIOException(e);
+    }
+    return buffer.readUtf8();
+  }
+
+  /**
+   * ok returns the payload of a successful reply (i.e. <code>{"status":"ok","response":{key: ...}}</code>)
+   * or just the status if the key is null
+   */
+  private static Payload ok(String key, Payload response) {
+    return w -> {
+      w.beginObject();
+      w.name("status").value("ok");
+      if (key != null) {
+        w.name("response").beginObject();
+        w.name(key);
+        response.write(w);
+        w.endObject();
+      }
+      w.endObject();
+    };
+  }
+
+  private static void write(JsonWriter writer, Rendered rendered) throws IOException {
+    write(writer, rendered, new HashSet<>());
   }
 
-  public static String replyDiff(Msg orig, Map parts) {
-    var data = new ArrayList();
-    data.add(orig.joinRef());
-    data.add(orig.msgRef());
-    data.add(orig.topic());
-    data.add("phx_reply");
-    data.add(Map.of(
-        "status", "ok",
-        "response", Map.of(
-            "diff", parts
-        )
-    ));
-    return listAdaptor.toJson(data);
+  private static void write(JsonWriter writer, Rendered rendered, Set<Long> cached) throws IOException {
+    if (rendered == null) {
+      writer.nullValue();
+      return;
+    }
+    rendered.toJson(writer, cached);
   }
 
-  public static String diff(String topic, Map diff) {
-    var data = new ArrayList();
-    data.add(null);
-    data.add(null); // empty msgRef
-    data.add(topic);
-    data.add("diff");
-    data.add(diff);
-    return listAdaptor.toJson(data);
+  @FunctionalInterface
+  private interface Payload {
+    void write(JsonWriter writer) throws IOException;
   }
 }
@@ -0,0 +1,34 @@
+package run.undead.template;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/**
+ * Awaiting is the value embedded in templates created by {@link Directive#Async}.
+ * @param future the future result
+ * @param loading the template to render until the future completes
+ * @param ok renders the result of the future
+ * @param failed renders the error if the future fails (or is cancelled)
+ * @param <T> the type of the result
+ */
+record Awaiting<T>(CompletableFuture<T> future, UndeadTemplate loading, Function<T, UndeadTemplate> ok,
+                   Function<Throwable, UndeadTemplate> failed) {
+
+  /**
+   * template returns the template for the current state of the future
+   */
+  UndeadTemplate template() {
+    if (!this.future.isDone()) {
+      return this.loading;
+    }
+    try {
+      return this.ok.apply(this.future.join());
+    } catch (CompletionException e) {
+      return this.failed.apply(e.getCause() == null ? e : e.getCause());
+    } catch (CancellationException e) {
+      return this.failed.apply(e);
+    }
+  }
+}
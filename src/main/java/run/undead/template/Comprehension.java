@@ -0,0 +1,238 @@
+package run.undead.template;
+
+import com.squareup.moshi.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Comprehension is the {@link Rendered} node for a list of {@link UndeadTemplate}s (e.g. the output of
+ * {@link Directive#For}).  All rows share the same statics which are only sent once and each row is an
+ * array of dynamic slots.
+ */
+public final class Comprehension {
+  private final Statics statics;
+  private final List<Object[]> dynamics;
+  // memo keys of each row (see Directive.Memo) or null if there are none
+  private final List<Object[]> keys;
+  // the inserts, deletes and reset of a stream (see Directive.Stream) or null if not a stream
+  private final Stream.Patch stream;
+  // lazily computed fingerprint (0 means not computed yet)
+  private volatile long fingerprint;
+
+  /**
+   * Comprehension creates a new node from the shared statics and the dynamics of each row
+   * @param statics the {@link Statics} shared by every row (or null if omitted in a diff)
+   * @param dynamics the dynamic slots of each row
+   */
+  public Comprehension(Statics statics, List<Object[]> dynamics) {
+    this(statics, dynamics, null);
+  }
+
+  Comprehension(Statics statics, List<Object[]> dynamics, List<Object[]> keys) {
+    this(statics, dynamics, keys, null);
+  }
+
+  Comprehension(Statics statics, List<Object[]> dynamics, List<Object[]> keys, Stream.Patch stream) {
+    this.statics = statics;
+    this.dynamics = dynamics;
+    this.keys = keys;
+    this.stream = stream;
+  }
+
+  /**
+   * statics returns the statics shared by every row or null if they were omitted from a diff
+   * @return the statics shared by every row
+   */
+  public List<String> statics() {
+    return this.statics == null ? null : this.statics.fragments();
+  }
+
+  /**
+   * shape returns the {@link Statics} shared by every row or null if they were omitted from a diff
+   * @return the {@link Statics} shared by every row
+   */
+  public Statics shape() {
+    return this.statics;
+  }
+
+  /**
+   * size returns the number of rows
+   * @return the number of rows
+   */
+  public int size() {
+    return this.dynamics.size();
+  }
+
+  /**
+   * row returns the dynamic slots of the row at the given index
+   * @param i the index of the row
+   * @return the dynamic slots of the row
+   */
+  public Object[] row(int i) {
+    return this.dynamics.get(i);
+  }
+
+  Object[] keys(int i) {
+    return this.keys != null && i < this.keys.size() ? this.keys.get(i) : null;
+  }
+
+  /**
+   * fingerprint returns a 64-bit hash of the statics, rows and stream changes of this comprehension
+   * (see {@link Rendered#fingerprint()})
+   * @return the fingerprint of the comprehension
+   */
+  public long fingerprint() {
+    var h = this.fingerprint;
+    if (h == 0) {
+      h = Statics.hash(this.statics == null ? Statics.FNV_OFFSET : this.statics.fingerprint(), this.dynamics.size());
+      for (var row : this.dynamics) {
+        h = Statics.hash(h, row.length);
+        for (var d : row) {
+          h = Rendered.fingerprint(h, d);
+        }
+      }
+      if (this.stream != null) {
+        h = Statics.hash(h, this.stream.toString());
+      }
+      h = h == 0 ? 1 : h;
+      this.fingerprint = h;
+    }
+    return h;
+  }
+
+  Stream.Patch stream() {
+    return this.stream;
+  }
+
+  Comprehension withoutStatics() {
+    return new Comprehension(null, this.dynamics, null, this.stream);
+  }
+
+  /**
+   * withStream returns a copy of this comprehension with the given stream changes using the fallback
+   * statics if there are no rows
+   */
+  Comprehension withStream(Stream.Patch stream, Statics fallback) {
+    return new Comprehension(this.statics == null ? fallback : this.statics, this.dynamics, this.keys, stream);
+  }
+
+  /**
+   * withoutStreamRows returns a copy without the rows of any streams or this if there are no streams
+   */
+  Comprehension withoutStreamRows() {
+    if (this.stream != null) {
+      return new Comprehension(this.statics, List.of(), null, this.stream.pruned());
+    }
+    List<Object[]> pruned = null;
+    for (var i = 0; i < this.dynamics.size(); i++) {
+      var row = this.dynamics.get(i);
+      var prunedRow = Rendered.withoutStreamRows(row);
+      if (prunedRow != row) {
+        if (pruned == null) {
+          pruned = new ArrayList<>(this.dynamics);
+        }
+        pruned.set(i, prunedRow);
+      }
+    }
+    return pruned == null ? this : new Comprehension(this.statics, pruned, this.keys, null);
+  }
+
+  boolean sameDynamics(Comprehension other) {
+    if (this.dynamics == other.dynamics) {
+      return true;
+    }
+    if (this.dynamics.size() != other.dynamics.size()) {
+      return false;
+    }
+    // large comprehensions are compared in parallel
+    return Parallel.allMatch(this.dynamics.size(), i -> Rendered.sameDynamics(this.dynamics.get(i), other.dynamics.get(i)));
+  }
+
+  /**
+   * toJson writes this node as a LiveView comprehension JSON object.  The statics of templates nested in
+   * the rows are written once to a shared template table (i.e. the "p" key) and referenced by index.
+   * @param writer the {@link JsonWriter} to write to
+   * @throws IOException if the writer fails
+   */
+  public void toJson(JsonWriter writer) throws IOException {
+    toJson(writer, null, new HashSet<>());
+  }
+
+  /**
+   * toJson writes this node using the template table of the enclosing comprehension (if any) otherwise
+   * this comprehension has its own template table
+   */
+  void toJson(JsonWriter writer, Map<Statics, Integer> templates, Set<Long> cached) throws IOException {
+    var table = templates != null ? templates : new LinkedHashMap<Statics, Integer>();
+    writer.beginObject();
+    writer.name("d").beginArray();
+    for (var row : this.dynamics) {
+      writer.beginArray();
+      for (var d : row) {
+        Rendered.writeDynamic(writer, d, table, cached);
+      }
+      writer.endArray();
+    }
+    writer.endArray();
+    if (this.statics != null) {
+      writer.name("s");
+      Rendered.writeStatics(writer, this.statics, templates, cached);
+    }
+    // nested comprehensions use the table of the outermost comprehension
+    if (templates == null && !table.isEmpty()) {
+      writer.name("p").beginObject();
+      for (var entry : table.entrySet()) {
+        writer.name(String.valueOf(entry.getValue()));
+        Rendered.writeStatics(writer, entry.getKey(), cached);
+      }
+      writer.endObject();
+    }
+    if (this.stream != null) {
+      writer.name("stream");
+      writeStream(writer, this.stream);
+    }
+    writer.endObject();
+  }
+
+  // [ref, {domId: [at, limit]}, [deleted domIds], reset?]
+  private static void writeStream(JsonWriter writer, Stream.Patch stream) throws IOException {
+    writer.beginArray();
+    writer.value(stream.ref());
+    writer.beginObject();
+    for (var insert : stream.inserts()) {
+      writer.name(insert.domId()).beginArray().value(insert.at()).value(insert.limit()).endArray();
+    }
+    writer.endObject();
+    writer.beginArray();
+    for (var id : stream.deletes()) {
+      writer.value(id);
+    }
+    writer.endArray();
+    // the client checks if reset is defined (rather than true)
+    if (stream.reset()) {
+      writer.value(true);
+    }
+    writer.endArray();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof Comprehension c && Rendered.same(this, c);
+  }
+
+  @Override
+  public int hashCode() {
+    var h = this.statics == null ? 0 : Long.hashCode(this.statics.fingerprint());
+    for (var row : this.dynamics) {
+      h = 31 * h + Arrays.deepHashCode(row);
+    }
+    return h;
+  }
+}
@@ -1,12 +1,17 @@
 package run.undead.template;
 
+import run.undead.view.View;
+
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.IntFunction;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.function.Supplier;
 
 import static run.undead.template.Undead.EMPTY;
 
@@ -126,7 +131,147 @@ public class Directive {
     if(collection == null) {
       return List.of();
     }
-    return collection.stream().map(func).collect(Collectors.toList());
+    var list = new ArrayList<UndeadTemplate>(collection.size());
+    for (var item : collection) {
+      list.add(func.apply(item));
+    }
+    return list;
+  }
+
+  /**
+   * For applies a function to each int from start (inclusive) to end (exclusive) without boxing the
+   * ints or creating a list of the results up front.  The function is called when a row is rendered.
+   * For example:
+   * <pre>{@code
+   *   <tr>\{ For(0, columns, c -> HTML."<td>\{ cells[row][c] }</td>") }</tr>
+   * }</pre>
+   * <strong>Note:</strong> the function is called each time the list is rendered (and, for large ranges,
+   * possibly from the {@link Parallel} pool) so it should not have side effects.
+   * @param start start of range
+   * @param end end of range
+   * @param func function to apply to each int of the range
+   * @return the (lazy) results of applying the function to each int of the range
+   */
+  public static Iterable<UndeadTemplate> For(int start, int end, IntFunction<UndeadTemplate> func) {
+    return For(start, end, 1, func);
+  }
+
+  /**
+   * For applies a function to each int from start to end by step without boxing the ints or creating a
+   * list of the results up front (see {@link #For(int, int, IntFunction)}).
+   * @param start start of range
+   * @param end end of range
+   * @param step step of range (negative to count down)
+   * @param func function to apply to each int of the range
+   * @return the (lazy) results of applying the function to each int of the range
+   */
+  public static Iterable<UndeadTemplate> For(int start, int end, int step, IntFunction<UndeadTemplate> func) {
+    return new ForRange(new IntRange(start, end, step), func);
+  }
+
+  /**
+   * For applies a function to each item of an iterable while the template is rendered so the items
+   * (e.g. rows of a database cursor or a page of results) are never collected into a list.  An iterator
+   * can be rendered with <code>For(() -> iterator, func)</code>.  For example:
+   * <pre>{@code
+   *   <ul>\{ For(() -> rows.iterator(), r -> HTML."<li>\{ r.name() }</li>") }</ul>
+   * }</pre>
+   * <strong>Note:</strong> the iterable is iterated each time the template is rendered so an iterable that
+   * can only be iterated once (such as the one above) should only be rendered once.
+   * @param items items to map over
+   * @param func function to apply to each item
+   * @return the (lazy) results of applying the function to each item
+   * @param <T> type of the items
+   */
+  public static <T> Iterable<UndeadTemplate> For(Iterable<T> items, Function<T, UndeadTemplate> func) {
+    if (items == null) {
+      return List.of();
+    }
+    return new ForEach<>(items, func);
+  }
+
+  /**
+   * Memo skips re-rendering a subtree whose inputs have not changed.  When the key is equal to the
+   * key of the Memo at the same position in the previous render (for the same {@link View}
+   * instance) the previously rendered subtree is reused without calling the supplier and the subtree
+   * is skipped entirely when diffing.  Otherwise, the supplier is called to render the subtree.
+   * For example:
+   * <pre>{@code
+   *   // only render the rows again when the rows or the sort order change (the versions of the assigns
+   *   // change whenever the assigns do so the rows themselves are not kept as the key)
+   *   var assigns = meta.assigns();
+   *   \{ Memo(List.of(assigns.version("rows"), assigns.version("sortBy")),
+   *       () -> HTML."<table>\{ For(assigns.get("rows"), r -> HTML."<tr>...</tr>") }</table>") }
+   * }</pre>
+   * <strong>Note:</strong> the key should be a value with a proper <code>equals</code> (e.g. a record,
+   * an immutable collection or a version number) that changes whenever the subtree would change.  The key
+   * is kept (until the next render) to compare with so use small keys (e.g. ids or the versions of assigns)
+   * rather than the model objects themselves which would then be kept alive by the key.
+   * @param key the (non-null) key that determines if the subtree needs to be rendered again
+   * @param template supplies the subtree when the key changes
+   * @return a template that renders the supplied subtree
+   */
+  public static UndeadTemplate Memo(Object key, Supplier<UndeadTemplate> template) {
+    Objects.requireNonNull(key, "Memo key must not be null");
+    var memo = new Memoized(key, template);
+    return new UndeadTemplate(StringTemplate.of(Memoized.FRAGMENTS, List.of(memo)));
+  }
+
+  /**
+   * Async renders the loading template until the future completes and then renders the result of
+   * the future (or nothing if the future failed).  Use {@link run.undead.context.Context#async} to run
+   * a task (or track a future) so that the {@link View} is rendered again when it completes.  For example:
+   * <pre>{@code
+   *   // in mount
+   *   context.async("report", () -> reports.load(id));
+   *   // in render
+   *   \{ Async(meta.assigns().get("report"), HTML."<p>Loading...</p>", r -> HTML."<p>\{r.total()}</p>") }
+   * }</pre>
+   * @param future the future result
+   * @param loading the template to render until the future completes
+   * @param ok renders the result of the future
+   * @return a template for the current state of the future
+   * @param <T> the type of the result
+   */
+  public static <T> UndeadTemplate Async(CompletableFuture<T> future, UndeadTemplate loading, Function<T, UndeadTemplate> ok) {
+    return Async(future, loading, ok, err -> EMPTY);
+  }
+
+  /**
+   * Async renders the loading template until the future completes and then renders the result of
+   * the future or the error if the future failed (or was cancelled).
+   * @param future the future result
+   * @param loading the template to render until the future completes
+   * @param ok renders the result of the future
+   * @param failed renders the error if the future failed
+   * @return a template for the current state of the future
+   * @param <T> the type of the result
+   */
+  public static <T> UndeadTemplate Async(CompletableFuture<T> future, UndeadTemplate loading,
+                                         Function<T, UndeadTemplate> ok, Function<Throwable, UndeadTemplate> failed) {
+    Objects.requireNonNull(future, "future must not be null");
+    return new UndeadTemplate(StringTemplate.of(List.of("", ""), List.of(new Awaiting<>(future, loading, ok, failed))));
+  }
+
+  /**
+   * Stream renders the pending inserts of a {@link run.undead.template.Stream} as a comprehension that
+   * only contains the inserted (or updated) items along with the deleted dom ids.  The items are dropped
+   * from the server once they are rendered.  For example:
+   * <pre>{@code
+   *   <ul id="messages" ud-update="stream">
+   *     \{ Stream(messages, (domId, msg) -> HTML."<li id=\{domId}>\{msg.text()}</li>") }
+   *   </ul>
+   * }</pre>
+   * <strong>Note:</strong> the stream should not be rendered inside a {@link #Memo} whose key does not
+   * change when the stream changes (see {@link run.undead.context.Assigns#slot}).
+   * @param stream the stream to render
+   * @param template renders an item given its dom id and the item
+   * @return a template that renders the changes of the stream
+   * @param <T> the type of the items in the stream
+   */
+  public static <T> UndeadTemplate Stream(Stream<T> stream, BiFunction<String, T, UndeadTemplate> template) {
+    Objects.requireNonNull(stream, "stream must not be null");
+    return new UndeadTemplate(StringTemplate.of(List.of("", ""), List.of(new Streamed<>(stream, template))));
   }
 
   /**
@@ -136,32 +281,31 @@ public class Directive {
    * @return a new template that is the concatenation of all templates with the separator template between each
    */
   public static UndeadTemplate Join(List<UndeadTemplate> tmpls, UndeadTemplate sep) {
-    return UndeadTemplate.concat(
-        IntStream.range(0, tmpls.size())
-            .mapToObj(
-                i -> {
-                  var tmpl = tmpls.get(i);
-                  if (i == tmpls.size() - 1) {
-                    return tmpl;
-                  }
-                  return UndeadTemplate.concat(tmpl, sep);
-                })
-            .collect(Collectors.toList()));
+    if (tmpls.isEmpty()) {
+      return EMPTY;
+    }
+    // interleave the separator and concatenate once
+    var joined = new UndeadTemplate[tmpls.size() * 2 - 1];
+    for (var i = 0; i < tmpls.size(); i++) {
+      if (i > 0) {
+        joined[i * 2 - 1] = sep;
+      }
+      joined[i * 2] = tmpls.get(i);
+    }
+    return UndeadTemplate.concat(joined);
   }
 
+
   /**
-   * Range returns a list of integers from start to end by step
+   * Range returns a list of integers from start to end by step.  The list is computed on access
+   * so it does not allocate a list of (boxed) integers up front.
    * @param start start of range
    * @param end end of range
    * @param step step of range
    * @return list of integers from start to end
    */
   public static List<Integer> Range(int start, int end, int step) {
-    var list = new ArrayList<Integer>();
-    for(var i = start; step > 0 ? i < end : end < i; i += step) {
-      list.add(i);
-    }
-    return list;
+    return new IntRange(start, end, step);
   }
 
   /**
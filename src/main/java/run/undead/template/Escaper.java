@@ -0,0 +1,204 @@
+package run.undead.template;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Escaper escapes HTML entities in the dynamic values of {@link UndeadTemplate}s.  It scans for
+ * characters that need escaping first and returns the input untouched (i.e. without allocating) when
+ * none are found.  When escaping is needed the escaped value is appended directly into a caller
+ * supplied buffer.
+ */
+public final class Escaper {
+
+  // replacement for each ascii char or null if it doesn't need escaping
+  private static final String[] ENTITIES = new String[128];
+
+  static {
+    ENTITIES['&'] = "&amp;";
+    ENTITIES['<'] = "&lt;";
+    ENTITIES['>'] = "&gt;";
+    ENTITIES['"'] = "&quot;";
+    ENTITIES['\''] = "&#39;";
+    ENTITIES['/'] = "&#x2F;";
+    ENTITIES['`'] = "&#x60;";
+    ENTITIES['='] = "&#x3D;";
+  }
+
+  // cached Strings of small ints which are common in templates (e.g. counts, indexes, ids) so
+  // rendering them doesn't allocate and the rendered trees share the same instances
+  private static final int SMALL_INT_MIN = -128;
+  private static final String[] SMALL_INTS = new String[1024 - SMALL_INT_MIN];
+
+  static {
+    for (var i = 0; i < SMALL_INTS.length; i++) {
+      SMALL_INTS[i] = Integer.toString(i + SMALL_INT_MIN);
+    }
+  }
+
+  private Escaper() {
+  }
+
+  /**
+   * indexOfEscape returns the index of the first character that needs escaping or -1 if none do
+   * @param input the input to scan
+   * @return the index of the first character that needs escaping or -1
+   */
+  public static int indexOfEscape(CharSequence input) {
+    for (var i = 0; i < input.length(); i++) {
+      var c = input.charAt(i);
+      if (c < 128 && ENTITIES[c] != null) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * escape returns the input with HTML entities escaped.  If there is nothing to escape
+   * the input is returned as is.
+   * @param input the String to escape
+   * @return the escaped String
+   */
+  public static String escape(String input) {
+    var first = indexOfEscape(input);
+    if (first < 0) {
+      return input;
+    }
+    var sb = new StringBuilder(input.length() + 16);
+    sb.append(input, 0, first);
+    appendFrom(input, first, sb);
+    return sb.toString();
+  }
+
+  /**
+   * escape returns the String value of the input with HTML entities escaped using fast paths
+   * for {@link Number}s and {@link Boolean}s which never need escaping.
+   * @param input the value to escape
+   * @return the escaped String
+   */
+  public static String escape(Object input) {
+    switch (input) {
+      case null -> {
+        return "";
+      }
+      case String s -> {
+        return escape(s);
+      }
+      case Boolean b -> {
+        return b ? "true" : "false";
+      }
+      case Integer i -> {
+        return toString(i.intValue());
+      }
+      case Long l -> {
+        return l >= SMALL_INT_MIN && l < SMALL_INTS.length + SMALL_INT_MIN ? toString(l.intValue()) : Long.toString(l);
+      }
+      case Number n when isPlainNumber(n) -> {
+        return n.toString();
+      }
+      default -> {
+        return escape(input.toString());
+      }
+    }
+  }
+
+  /**
+   * escapeTo appends the input to the output escaping HTML entities
+   * @param input the input to escape
+   * @param out the buffer to append to
+   * @return the buffer
+   */
+  public static StringBuilder escapeTo(CharSequence input, StringBuilder out) {
+    var first = indexOfEscape(input);
+    if (first < 0) {
+      return out.append(input);
+    }
+    out.append(input, 0, first);
+    appendFrom(input, first, out);
+    return out;
+  }
+
+  /**
+   * escapeTo appends the input to the output escaping HTML entities
+   * @param input the input to escape
+   * @param out the {@link Appendable} to append to
+   * @throws IOException if the {@link Appendable} fails
+   */
+  public static void escapeTo(CharSequence input, Appendable out) throws IOException {
+    // write runs of characters that don't need escaping in one call
+    var start = 0;
+    for (var i = 0; i < input.length(); i++) {
+      var c = input.charAt(i);
+      if (c < 128 && ENTITIES[c] != null) {
+        if (start < i) {
+          out.append(input, start, i);
+        }
+        out.append(ENTITIES[c]);
+        start = i + 1;
+      }
+    }
+    if (start < input.length()) {
+      out.append(input, start, input.length());
+    }
+  }
+
+  /**
+   * escapeTo appends the String value of the input to the output escaping HTML entities using
+   * fast paths for {@link Number}s and {@link Boolean}s which never need escaping.
+   * @param input the value to escape
+   * @param out the buffer to append to
+   * @return the buffer
+   */
+  public static StringBuilder escapeTo(Object input, StringBuilder out) {
+    switch (input) {
+      case null -> {
+        return out;
+      }
+      case String s -> {
+        return escapeTo(s, out);
+      }
+      case Boolean b -> {
+        return out.append(b.booleanValue());
+      }
+      case Integer i -> {
+        return out.append(i.intValue());
+      }
+      case Long l -> {
+        return out.append(l.longValue());
+      }
+      case Number n when isPlainNumber(n) -> {
+        return out.append(n.toString());
+      }
+      default -> {
+        return escapeTo(input.toString(), out);
+      }
+    }
+  }
+
+  private static String toString(int i) {
+    if (i >= SMALL_INT_MIN && i < SMALL_INTS.length + SMALL_INT_MIN) {
+      return SMALL_INTS[i - SMALL_INT_MIN];
+    }
+    return Integer.toString(i);
+  }
+
+  private static void appendFrom(CharSequence input, int from, StringBuilder out) {
+    for (var i = from; i < input.length(); i++) {
+      var c = input.charAt(i);
+      if (c < 128 && ENTITIES[c] != null) {
+        out.append(ENTITIES[c]);
+      } else {
+        out.append(c);
+      }
+    }
+  }
+
+  // the JDK number types only contain digits, signs, '.', 'E' (or NaN / Infinity)
+  // whereas subclasses of Number could return anything from toString
+  private static boolean isPlainNumber(Number n) {
+    return n instanceof Short || n instanceof Byte || n instanceof Double || n instanceof Float
+        || n instanceof BigDecimal || n instanceof BigInteger;
+  }
+}
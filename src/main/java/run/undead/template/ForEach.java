@@ -0,0 +1,38 @@
+package run.undead.template;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.function.Function;
+
+/**
+ * ForEach is the (lazy) iterable of templates returned by {@link Directive#For(Iterable, Function)}.  The items
+ * are iterated (and their templates created) while rendering instead of being collected into a list first.
+ * @param items the items to render
+ * @param template renders an item
+ * @param <T> the type of the items
+ */
+record ForEach<T>(Iterable<T> items, Function<T, UndeadTemplate> template) implements Iterable<UndeadTemplate> {
+
+  /**
+   * sizeHint returns the number of items if known up front otherwise a small default
+   */
+  int sizeHint() {
+    return this.items instanceof Collection<?> c ? c.size() : 16;
+  }
+
+  @Override
+  public Iterator<UndeadTemplate> iterator() {
+    var it = this.items.iterator();
+    return new Iterator<>() {
+      @Override
+      public boolean hasNext() {
+        return it.hasNext();
+      }
+
+      @Override
+      public UndeadTemplate next() {
+        return template.apply(it.next());
+      }
+    };
+  }
+}
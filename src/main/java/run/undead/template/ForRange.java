@@ -0,0 +1,37 @@
+package run.undead.template;
+
+import java.util.AbstractList;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.function.IntFunction;
+
+/**
+ * ForRange is the (lazy) list of templates returned by {@link Directive#For(int, int, int, IntFunction)}.  The
+ * template of a row is created when the row is read (i.e. rendered) so the list never holds boxed ints or templates.
+ */
+final class ForRange extends AbstractList<UndeadTemplate> implements RandomAccess {
+  private final IntRange range;
+  private final IntFunction<UndeadTemplate> template;
+
+  ForRange(IntRange range, IntFunction<UndeadTemplate> template) {
+    this.range = range;
+    this.template = template;
+  }
+
+  /**
+   * compact returns a range that compacts the template of each row (see {@link UndeadTemplate#compact()})
+   */
+  ForRange compact() {
+    return new ForRange(this.range, i -> this.template.apply(i).compact());
+  }
+
+  @Override
+  public UndeadTemplate get(int index) {
+    return this.template.apply(this.range.at(Objects.checkIndex(index, this.range.size())));
+  }
+
+  @Override
+  public int size() {
+    return this.range.size();
+  }
+}
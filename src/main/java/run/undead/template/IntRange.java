@@ -0,0 +1,44 @@
+package run.undead.template;
+
+import java.util.AbstractList;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+/**
+ * IntRange is the (lazy) list of ints returned by {@link Directive#Range}.  The ints are computed on access
+ * rather than stored so a range only allocates the boxed ints that are actually read.
+ */
+final class IntRange extends AbstractList<Integer> implements RandomAccess {
+  private final int start;
+  private final int step;
+  private final int size;
+
+  IntRange(int start, int end, int step) {
+    if (step == 0) {
+      throw new IllegalArgumentException("step must not be 0");
+    }
+    this.start = start;
+    this.step = step;
+    // use longs so ranges close to the int bounds don't overflow
+    var span = step > 0 ? (long) end - start : (long) start - end;
+    var abs = Math.abs((long) step);
+    this.size = span <= 0 ? 0 : (int) ((span + abs - 1) / abs);
+  }
+
+  /**
+   * at returns the (unboxed) int at the index
+   */
+  int at(int index) {
+    return this.start + index * this.step;
+  }
+
+  @Override
+  public Integer get(int index) {
+    return at(Objects.checkIndex(index, this.size));
+  }
+
+  @Override
+  public int size() {
+    return this.size;
+  }
+}
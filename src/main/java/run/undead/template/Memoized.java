@@ -0,0 +1,14 @@
+package run.undead.template;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Memoized is the value embedded in templates created by {@link Directive#Memo}.
+ * @param key the key that determines if the template needs to be rendered again
+ * @param template supplies the template when the key changes
+ */
+record Memoized(Object key, Supplier<UndeadTemplate> template) {
+  // fragments of the template wrapping a Memoized value
+  static final List<String> FRAGMENTS = List.of("", "");
+}
@@ -0,0 +1,164 @@
+package run.undead.template;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * <p>
+ * Parallel controls when rendering and diffing of large comprehensions (e.g. the output of {@link Directive#For}
+ * over thousands of rows) is split across a {@link ForkJoinPool}.  Lists with at least <code>threshold</code> rows
+ * are split into chunks that are rendered (or diffed) in parallel and the results are always combined in list order
+ * so the output is the same as rendering sequentially.  Smaller lists are rendered on the calling thread.
+ * </p>
+ * <p>
+ * The settings come from the {@link run.undead.config.Config} (see <code>parallelThreshold</code> and
+ * <code>parallelPool</code>) and apply to the renders run with {@link #run} or {@link #call}.  Renders outside
+ * of those use {@link #DEFAULT}.
+ * </p>
+ * <strong>Note:</strong> when rendering in parallel, {@link Directive#Memo} suppliers of rows in large lists (and the
+ * functions of large {@link Directive#For(int, int, java.util.function.IntFunction)} ranges) may be called from the
+ * pool threads so they should not depend on thread-local state.
+ * @param threshold the minimum number of rows in a list before it is rendered in parallel (use
+ *                  {@link Integer#MAX_VALUE} to always render sequentially)
+ * @param pool the {@link ForkJoinPool} used to render in parallel
+ */
+public record Parallel(int threshold, ForkJoinPool pool) {
+
+  /**
+   * DEFAULT renders lists with at least 2,000 rows in parallel on the common pool
+   */
+  public static final Parallel DEFAULT = new Parallel(2_000, ForkJoinPool.commonPool());
+
+  // smallest number of rows a single task handles
+  private static final int MIN_CHUNK = 128;
+
+  // the settings of the render running on this thread
+  private static final ScopedValue<Parallel> CURRENT = ScopedValue.newInstance();
+
+  public Parallel {
+    if (threshold < 1) {
+      throw new IllegalArgumentException("threshold must be positive:" + threshold);
+    }
+    if (pool == null) {
+      throw new IllegalArgumentException("pool must not be null");
+    }
+  }
+
+  /**
+   * run runs the task (e.g. rendering a {@link run.undead.view.View}) with these settings
+   * @param task the task to run
+   */
+  public void run(Runnable task) {
+    ScopedValue.where(CURRENT, this).run(task);
+  }
+
+  /**
+   * call calls the task (e.g. rendering a {@link run.undead.view.View}) with these settings
+   * @param task the task to call
+   * @return the result of the task
+   * @param <T> the type of the result
+   * @throws Exception if the task throws an exception
+   */
+  public <T> T call(Callable<T> task) throws Exception {
+    return ScopedValue.where(CURRENT, this).call(task);
+  }
+
+  /**
+   * current returns the settings of the render running on this thread
+   */
+  static Parallel current() {
+    return CURRENT.orElse(DEFAULT);
+  }
+
+  /**
+   * forEach calls the body with each index from 0 to size (exclusive) in parallel if size is
+   * above the threshold otherwise sequentially on the calling thread
+   */
+  static void forEach(int size, IntConsumer body) {
+    forEachRange(size, (from, to) -> {
+      for (var i = from; i < to; i++) {
+        body.accept(i);
+      }
+    });
+  }
+
+  /**
+   * forEachRange splits the indexes from 0 to size (exclusive) into ranges and calls the body
+   * with each range in parallel if size is above the threshold otherwise calls the body once with
+   * the whole range on the calling thread
+   */
+  static void forEachRange(int size, RangeConsumer body) {
+    var settings = current();
+    var p = settings.pool;
+    if (size < settings.threshold || p.getParallelism() < 2) {
+      body.accept(0, size);
+      return;
+    }
+    var chunk = Math.max(MIN_CHUNK, size / (p.getParallelism() * 4));
+    var task = new RangeAction(0, size, chunk, body, settings);
+    // nested lists are already running in a pool so just fork from here
+    if (ForkJoinTask.inForkJoinPool()) {
+      task.invoke();
+    } else {
+      p.invoke(task);
+    }
+  }
+
+  /**
+   * allMatch returns true if the predicate is true for every index from 0 to size (exclusive)
+   * testing in parallel if size is above the threshold
+   */
+  static boolean allMatch(int size, IntPredicate predicate) {
+    var failed = new AtomicBoolean();
+    forEachRange(size, (from, to) -> {
+      for (var i = from; i < to && !failed.get(); i++) {
+        if (!predicate.test(i)) {
+          failed.set(true);
+        }
+      }
+    });
+    return !failed.get();
+  }
+
+  @FunctionalInterface
+  interface RangeConsumer {
+    void accept(int from, int to);
+  }
+
+  // tasks are never serialized (RecursiveAction is Serializable but the body and settings are not)
+  @SuppressWarnings("serial")
+  private static class RangeAction extends RecursiveAction {
+    private final int from;
+    private final int to;
+    private final int chunk;
+    private final RangeConsumer body;
+    private final Parallel settings;
+
+    RangeAction(int from, int to, int chunk, RangeConsumer body, Parallel settings) {
+      this.from = from;
+      this.to = to;
+      this.chunk = chunk;
+      this.body = body;
+      this.settings = settings;
+    }
+
+    @Override
+    protected void compute() {
+      if (this.to - this.from <= this.chunk) {
+        // pool threads don't inherit the settings (which nested lists use)
+        this.settings.run(() -> this.body.accept(this.from, this.to));
+        return;
+      }
+      var mid = (this.from + this.to) >>> 1;
+      invokeAll(
+          new RangeAction(this.from, mid, this.chunk, this.body, this.settings),
+          new RangeAction(mid, this.to, this.chunk, this.body, this.settings)
+      );
+    }
+  }
+}
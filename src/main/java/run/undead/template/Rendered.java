@@ -0,0 +1,473 @@
+package run.undead.template;
+
+import com.squareup.moshi.JsonWriter;
+import run.undead.event.UndeadEvent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rendered is the typed "parts" tree of an {@link UndeadTemplate} that Undead sends to the client
+ * over the websocket.  Each node holds a (shared) reference to the static fragments of the template
+ * and an array of dynamic slots.  A dynamic slot is one of:
+ * <ul>
+ *   <li>a <code>String</code> - an already escaped leaf value</li>
+ *   <li>a {@link Rendered} - a nested template</li>
+ *   <li>a {@link Comprehension} - a list of templates that share the same statics</li>
+ * </ul>
+ * A Rendered returned from {@link #diff(Rendered, Rendered)} may omit its statics (i.e. they did not change)
+ * and may contain <code>null</code> dynamic slots which means that slot did not change.
+ */
+public final class Rendered {
+
+  /**
+   * EMPTY is a diff that contains no changes
+   */
+  public static final Rendered EMPTY = new Rendered(null, new Object[0]);
+
+  private final Statics statics;
+  private final Object[] dynamics;
+  // memo keys of the dynamic slots (see Directive.Memo) or null if there are none
+  private final Object[] keys;
+  private final String title;
+  private final List<UndeadEvent> events;
+  // lazily computed fingerprint of the tree (0 means not computed yet)
+  private volatile long fingerprint;
+
+  /**
+   * Rendered creates a new node from the statics and dynamics of a template
+   * @param statics the {@link Statics} of the template (or null if omitted in a diff)
+   * @param dynamics the dynamic slots of the template
+   */
+  public Rendered(Statics statics, Object[] dynamics) {
+    this(statics, dynamics, null, null, null);
+  }
+
+  Rendered(Statics statics, Object[] dynamics, Object[] keys) {
+    this(statics, dynamics, keys, null, null);
+  }
+
+  private Rendered(Statics statics, Object[] dynamics, Object[] keys, String title, List<UndeadEvent> events) {
+    this.statics = statics;
+    this.dynamics = dynamics;
+    this.keys = keys;
+    this.title = title;
+    this.events = events;
+  }
+
+  /**
+   * statics returns the static fragments of this node or null if they were omitted from a diff
+   * @return the static fragments of this node
+   */
+  public List<String> statics() {
+    return this.statics == null ? null : this.statics.fragments();
+  }
+
+  /**
+   * shape returns the {@link Statics} (including the fingerprint) of this node or null if they
+   * were omitted from a diff
+   * @return the {@link Statics} of this node
+   */
+  public Statics shape() {
+    return this.statics;
+  }
+
+  /**
+   * size returns the number of dynamic slots in this node
+   * @return the number of dynamic slots
+   */
+  public int size() {
+    return this.dynamics.length;
+  }
+
+  /**
+   * get returns the dynamic slot at the given index
+   * @param i the index of the dynamic slot
+   * @return a String, {@link Rendered}, {@link Comprehension} or null if unchanged in a diff
+   */
+  public Object get(int i) {
+    return this.dynamics[i];
+  }
+
+  Object[] dynamics() {
+    return this.dynamics;
+  }
+
+  Object[] keys() {
+    return this.keys;
+  }
+
+  /**
+   * isEmpty returns true if this node has no statics and no (changed) dynamics
+   * @return true if there is nothing to send to the client
+   */
+  public boolean isEmpty() {
+    if (this.statics != null || this.title != null || this.events != null) {
+      return false;
+    }
+    for (var d : this.dynamics) {
+      if (d != null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * fingerprint returns a 64-bit hash of the statics and dynamics of the whole tree (excluding the title
+   * and events) which is computed once per node.  Trees with the same fingerprint render the same parts
+   * so the fingerprint can be used to share work (e.g. diffs) between sessions.  <strong>Note:</strong> this
+   * is not a cryptographic hash.
+   * @return the fingerprint of the tree
+   */
+  public long fingerprint() {
+    var h = this.fingerprint;
+    if (h == 0) {
+      // benign race: concurrent callers compute the same value
+      h = Statics.hash(this.statics == null ? Statics.FNV_OFFSET : this.statics.fingerprint(), this.dynamics.length);
+      for (var d : this.dynamics) {
+        h = fingerprint(h, d);
+      }
+      h = h == 0 ? 1 : h;
+      this.fingerprint = h;
+    }
+    return h;
+  }
+
+  static long fingerprint(long h, Object d) {
+    return switch (d) {
+      case null -> Statics.hash(h, 0);
+      case String s -> Statics.hash(h, s);
+      case Rendered r -> Statics.hash(h, r.fingerprint());
+      case Comprehension c -> Statics.hash(h, c.fingerprint());
+      default -> throw new IllegalStateException("unexpected dynamic:" + d.getClass());
+    };
+  }
+
+  /**
+   * withTitle returns a copy of this node that also updates the page title on the client
+   * @param title the new page title
+   * @return a copy of this node with the title set
+   */
+  public Rendered withTitle(String title) {
+    return new Rendered(this.statics, this.dynamics, this.keys, title, this.events);
+  }
+
+  /**
+   * withEvents returns a copy of this node that also pushes the given events to the client
+   * @param events the events to push to the client
+   * @return a copy of this node with the events set
+   */
+  public Rendered withEvents(List<UndeadEvent> events) {
+    return new Rendered(this.statics, this.dynamics, this.keys, this.title, events);
+  }
+
+  /**
+   * diff returns the parts of the right tree that differ from the left tree walking both
+   * trees once.  Statics are only included when the shape (i.e. the {@link Statics} fingerprint)
+   * of a node changes and unchanged dynamic slots are null.
+   * @param left the previously rendered tree
+   * @param right the newly rendered tree
+   * @return a diff of the two trees or {@link #EMPTY} if they are the same
+   */
+  public static Rendered diff(Rendered left, Rendered right) {
+    var d = diffNode(left, right);
+    return d == null ? EMPTY : d;
+  }
+
+  private static Rendered diffNode(Rendered left, Rendered right) {
+    if (left == right) {
+      return null;
+    }
+    // different shape so send the whole node
+    if (!Statics.same(left.statics, right.statics)) {
+      return right;
+    }
+    Object[] changed = null;
+    for (var i = 0; i < right.dynamics.length; i++) {
+      var d = diffDynamic(left.dynamics[i], right.dynamics[i]);
+      if (d != null) {
+        if (changed == null) {
+          changed = new Object[right.dynamics.length];
+        }
+        changed[i] = d;
+      }
+    }
+    return changed == null ? null : new Rendered(null, changed);
+  }
+
+  private static Object diffDynamic(Object left, Object right) {
+    if (left == right) {
+      return null;
+    }
+    if (left instanceof String l && right instanceof String r) {
+      return l.equals(r) ? null : r;
+    }
+    if (left instanceof Rendered l && right instanceof Rendered r) {
+      return diffNode(l, r);
+    }
+    if (left instanceof Comprehension l && right instanceof Comprehension r) {
+      if (!Statics.same(l.shape(), r.shape())) {
+        return r;
+      }
+      // the rows of a stream are only the changes so send them if there are any
+      if (r.stream() != null) {
+        return r.stream().isEmpty() ? null : r.withoutStatics();
+      }
+      // the client replaces all the dynamics of a comprehension so we can only omit the statics
+      return l.sameDynamics(r) ? null : r.withoutStatics();
+    }
+    // type of slot changed so send the new value
+    return right;
+  }
+
+  static boolean sameDynamics(Object[] left, Object[] right) {
+    if (left == right) {
+      return true;
+    }
+    if (left.length != right.length) {
+      return false;
+    }
+    for (var i = 0; i < left.length; i++) {
+      if (!same(left[i], right[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static boolean same(Object left, Object right) {
+    if (left == right) {
+      return true;
+    }
+    if (left instanceof String l && right instanceof String r) {
+      return l.equals(r);
+    }
+    if (left instanceof Rendered l && right instanceof Rendered r) {
+      return Statics.same(l.statics, r.statics) && sameDynamics(l.dynamics, r.dynamics);
+    }
+    if (left instanceof Comprehension l && right instanceof Comprehension r) {
+      return Statics.same(l.shape(), r.shape()) && l.sameDynamics(r);
+    }
+    return false;
+  }
+
+  /**
+   * withoutStreamRows returns a copy of this tree without the rows of any streams (see {@link Directive#Stream})
+   * or this tree if it does not contain any streams.  Once the rows of a stream are sent, they are kept on the client
+   * so they should not be kept (i.e. in the baseline for the next diff) on the server.
+   * @return this tree without the rows of any streams
+   */
+  public Rendered withoutStreamRows() {
+    var pruned = withoutStreamRows(this.dynamics);
+    return pruned == this.dynamics ? this : new Rendered(this.statics, pruned, this.keys, this.title, this.events);
+  }
+
+  static Object[] withoutStreamRows(Object[] dynamics) {
+    Object[] pruned = null;
+    for (var i = 0; i < dynamics.length; i++) {
+      var d = dynamics[i];
+      var p = switch (d) {
+        case Rendered r -> r.withoutStreamRows();
+        case Comprehension c -> c.withoutStreamRows();
+        case null, default -> d;
+      };
+      if (p != d) {
+        if (pruned == null) {
+          pruned = dynamics.clone();
+        }
+        pruned[i] = p;
+      }
+    }
+    return pruned == null ? dynamics : pruned;
+  }
+
+  /**
+   * toJson writes this node as a LiveView "parts" JSON object
+   * @param writer the {@link JsonWriter} to write to
+   * @throws IOException if the writer fails
+   */
+  public void toJson(JsonWriter writer) throws IOException {
+    toJson(writer, null, new HashSet<>());
+  }
+
+  /**
+   * toJson writes this node as a LiveView "parts" JSON object where the statics the client already has
+   * cached are written as their (hex) {@link Statics#fingerprint()} instead of their fragments.  The client
+   * caches every statics it receives so the fingerprints of the statics written in full are added to
+   * <code>cached</code> (i.e. later messages, and later nodes of this message, only send the fingerprint).
+   * @param writer the {@link JsonWriter} to write to
+   * @param cached the fingerprints of the statics cached by the client
+   * @throws IOException if the writer fails
+   */
+  public void toJson(JsonWriter writer, Set<Long> cached) throws IOException {
+    toJson(writer, null, cached);
+  }
+
+  /**
+   * toJson writes this node using the template table of the enclosing comprehension (if any)
+   */
+  void toJson(JsonWriter writer, Map<Statics, Integer> templates, Set<Long> cached) throws IOException {
+    writer.beginObject();
+    for (var i = 0; i < this.dynamics.length; i++) {
+      var d = this.dynamics[i];
+      if (d != null) {
+        writer.name(String.valueOf(i));
+        writeDynamic(writer, d, templates, cached);
+      }
+    }
+    if (this.statics != null) {
+      writer.name("s");
+      writeStatics(writer, this.statics, templates, cached);
+    }
+    if (this.title != null) {
+      writer.name("t").value(this.title);
+    }
+    if (this.events != null) {
+      writer.name("e").beginArray();
+      for (var event : this.events) {
+        writer.beginArray();
+        writer.value(event.type());
+        writer.jsonValue(event.data() == null ? Map.of() : event.data().asMap());
+        writer.endArray();
+      }
+      writer.endArray();
+    }
+    writer.endObject();
+  }
+
+  static void writeDynamic(JsonWriter writer, Object d, Map<Statics, Integer> templates, Set<Long> cached) throws IOException {
+    switch (d) {
+      case String s -> writer.value(s);
+      case Rendered r -> r.toJson(writer, templates, cached);
+      case Comprehension c -> c.toJson(writer, templates, cached);
+      default -> throw new IllegalStateException("unexpected dynamic:" + d.getClass());
+    }
+  }
+
+  /**
+   * writeStatics writes the statics as an array or, inside a comprehension, as the index of the
+   * statics in the template table of the comprehension (i.e. the LiveView "p" key)
+   */
+  static void writeStatics(JsonWriter writer, Statics statics, Map<Statics, Integer> templates, Set<Long> cached) throws IOException {
+    if (templates != null) {
+      var index = templates.get(statics);
+      if (index == null) {
+        index = templates.size();
+        templates.put(statics, index);
+      }
+      writer.value(index);
+      return;
+    }
+    writeStatics(writer, statics, cached);
+  }
+
+  /**
+   * writeStatics writes the statics as an array (adding them to the cached statics) or as the (hex)
+   * fingerprint if the client has them cached
+   */
+  static void writeStatics(JsonWriter writer, Statics statics, Set<Long> cached) throws IOException {
+    if (!cached.add(statics.fingerprint())) {
+      writer.value(Long.toHexString(statics.fingerprint()));
+      return;
+    }
+    writeStatics(writer, statics.fragments());
+  }
+
+  static void writeStatics(JsonWriter writer, List<String> statics) throws IOException {
+    writer.beginArray();
+    for (var s : statics) {
+      writer.value(s);
+    }
+    writer.endArray();
+  }
+
+  /**
+   * toParts returns this node as a Map of String to Object (i.e. the "parts" of the template).
+   * @return a Map of String to Object
+   */
+  public Map<String, Object> toParts() {
+    var parts = new HashMap<String, Object>();
+    for (var i = 0; i < this.dynamics.length; i++) {
+      var d = this.dynamics[i];
+      if (d != null) {
+        parts.put(String.valueOf(i), toPart(d));
+      }
+    }
+    if (this.statics != null) {
+      parts.put("s", this.statics.fragments());
+    }
+    if (this.title != null) {
+      parts.put("t", this.title);
+    }
+    if (this.events != null) {
+      parts.put("e", this.events);
+    }
+    return parts;
+  }
+
+  static Object toPart(Object d) {
+    switch (d) {
+      case Rendered r -> {
+        return r.toParts();
+      }
+      case Comprehension c -> {
+        var rows = new ArrayList<>(c.size());
+        for (var i = 0; i < c.size(); i++) {
+          var row = c.row(i);
+          // rows without dynamics are represented by their (only) static fragment
+          if (row.length == 0 && c.statics() != null && c.statics().size() == 1) {
+            rows.add(c.statics().get(0));
+            continue;
+          }
+          rows.add(new Rendered(null, row).toParts());
+        }
+        var parts = new HashMap<String, Object>();
+        parts.put("d", rows);
+        if (c.statics() != null) {
+          parts.put("s", c.statics());
+        }
+        if (c.stream() != null) {
+          parts.put("stream", toPart(c.stream()));
+        }
+        return parts;
+      }
+      default -> {
+        return d;
+      }
+    }
+  }
+
+  private static List<Object> toPart(Stream.Patch stream) {
+    var inserts = new HashMap<String, Object>();
+    for (var insert : stream.inserts()) {
+      inserts.put(insert.domId(), Arrays.asList(insert.at(), insert.limit()));
+    }
+    var part = new ArrayList<Object>(List.of(stream.ref(), inserts, stream.deletes()));
+    if (stream.reset()) {
+      part.add(true);
+    }
+    return part;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof Rendered r && same(this, r);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * (this.statics == null ? 0 : Long.hashCode(this.statics.fingerprint())) + Arrays.deepHashCode(this.dynamics);
+  }
+
+  @Override
+  public String toString() {
+    return String.valueOf(this.toParts());
+  }
+}
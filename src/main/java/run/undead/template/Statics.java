@@ -0,0 +1,235 @@
+package run.undead.template;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Statics are the static fragments of an {@link UndeadTemplate} "shape" (typically a single
+ * {@link Undead#HTML} call site) along with a stable fingerprint of those fragments.  Statics are
+ * registered once per shape so every render of the same call site shares the same instance and
+ * the differ can compare shapes by identity rather than by comparing every fragment.
+ */
+public final class Statics {
+
+  // upper bound on registered shapes; the least recently used shapes are evicted so templates built at runtime
+  // (e.g. concat ropes or joins of varying arity) can't grow the registry forever or crowd out the call sites
+  private static final int MAX_SHAPES = 10_000;
+  private static final Cache<List<String>, Statics> REGISTRY = CacheBuilder.newBuilder()
+      .maximumSize(MAX_SHAPES)
+      .build();
+
+  // the statics of concatenated templates by the (identities of the) fragments of the concatenated templates
+  private static final Cache<Parts, Statics> CONCATS = CacheBuilder.newBuilder()
+      .maximumSize(MAX_SHAPES)
+      .build();
+
+  private final List<String> fragments;
+  private final long fingerprint;
+  private volatile byte[][] utf8;
+  private volatile Whitespace.Collapsed collapsed;
+  private volatile List<String> trimmed;
+
+  private Statics(List<String> fragments) {
+    this.fragments = fragments;
+    this.fingerprint = fingerprint(fragments);
+  }
+
+  /**
+   * of returns the registered Statics for the given fragments creating them if they don't exist
+   * @param fragments the static fragments of a template
+   * @return the Statics for the fragments
+   */
+  public static Statics of(List<String> fragments) {
+    var statics = REGISTRY.getIfPresent(fragments);
+    if (statics != null) {
+      return statics;
+    }
+    return REGISTRY.asMap().computeIfAbsent(List.copyOf(fragments), Statics::new);
+  }
+
+  /**
+   * concat returns the registered Statics of the concatenation of templates with the given fragments.  The
+   * fragments of a template are typically the same instance for every render of a call site so the result is
+   * looked up by the identities of the fragments and the fragments are only merged the first time.
+   * @param parts the fragments of each of the concatenated templates
+   * @return the Statics of the concatenation
+   */
+  static Statics concat(List<List<String>> parts) {
+    var key = new Parts(parts.toArray(List<?>[]::new));
+    var statics = CONCATS.getIfPresent(key);
+    if (statics != null) {
+      return statics;
+    }
+    // the last fragment of each template is merged with the first fragment of the next template
+    var fragments = new ArrayList<String>();
+    var pending = new StringBuilder();
+    for (var part : parts) {
+      pending.append(part.get(0));
+      for (var i = 1; i < part.size(); i++) {
+        fragments.add(pending.toString());
+        pending.setLength(0);
+        pending.append(part.get(i));
+      }
+    }
+    fragments.add(pending.toString());
+    statics = of(fragments);
+    CONCATS.put(key, statics);
+    return statics;
+  }
+
+  /**
+   * Parts is the key of concatenated statics which compares the fragments by identity
+   */
+  private record Parts(List<?>[] parts) {
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Parts other) || other.parts.length != this.parts.length) {
+        return false;
+      }
+      for (var i = 0; i < this.parts.length; i++) {
+        if (this.parts[i] != other.parts[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      var hash = 1;
+      for (var part : this.parts) {
+        hash = 31 * hash + System.identityHashCode(part);
+      }
+      return hash;
+    }
+  }
+
+  /**
+   * fragments returns the static fragments
+   * @return the static fragments
+   */
+  public List<String> fragments() {
+    return this.fragments;
+  }
+
+  /**
+   * utf8 returns the fragments encoded as UTF-8.  The fragments are encoded once
+   * (on first use) and then cached for all subsequent renders of this shape.  Callers
+   * must not modify the returned arrays.
+   * @return the UTF-8 encoded fragments
+   */
+  byte[][] utf8() {
+    var bytes = this.utf8;
+    if (bytes == null) {
+      // benign race: concurrent callers compute the same bytes
+      bytes = new byte[this.fragments.size()][];
+      for (var i = 0; i < bytes.length; i++) {
+        bytes[i] = this.fragments.get(i).getBytes(StandardCharsets.UTF_8);
+      }
+      this.utf8 = bytes;
+    }
+    return bytes;
+  }
+
+  /**
+   * collapsed returns the fragments with insignificant whitespace collapsed (see {@link Whitespace}) which
+   * are computed once (on first use) and then cached for all subsequent renders of this shape.
+   * @return the collapsed fragments
+   */
+  Whitespace.Collapsed collapsed() {
+    var c = this.collapsed;
+    if (c == null) {
+      // benign race: concurrent callers compute the same fragments
+      c = Whitespace.collapse(this.fragments);
+      this.collapsed = c;
+    }
+    return c;
+  }
+
+  /**
+   * trimmed returns the fragments with leading whitespace removed from the first fragment and trailing
+   * whitespace removed from the last fragment which are computed once and then cached.
+   * @return the trimmed fragments
+   */
+  List<String> trimmed() {
+    var t = this.trimmed;
+    if (t == null) {
+      var last = this.fragments.size() - 1;
+      var fragments = new ArrayList<>(this.fragments);
+      fragments.set(0, fragments.get(0).stripLeading());
+      fragments.set(last, fragments.get(last).stripTrailing());
+      t = List.copyOf(fragments);
+      this.trimmed = t;
+    }
+    return t;
+  }
+
+  /**
+   * fingerprint returns a hash of the fragments that is stable across renders, sessions and
+   * server restarts.
+   * @return the fingerprint of the fragments
+   */
+  public long fingerprint() {
+    return this.fingerprint;
+  }
+
+  /**
+   * same returns true if both Statics have the same fragments
+   * @param left the left Statics (may be null)
+   * @param right the right Statics (may be null)
+   * @return true if both are the same shape
+   */
+  static boolean same(Statics left, Statics right) {
+    if (left == right) {
+      return true;
+    }
+    if (left == null || right == null || left.fingerprint != right.fingerprint) {
+      return false;
+    }
+    // only statics of shapes that were evicted (and registered again) get here
+    return left.fragments.equals(right.fragments);
+  }
+
+  // 64-bit FNV-1a over the fragment chars with a separator between fragments
+  private static long fingerprint(List<String> fragments) {
+    var h = FNV_OFFSET;
+    for (var fragment : fragments) {
+      h = hash(h, fragment);
+    }
+    return h;
+  }
+
+  static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  /**
+   * hash continues the 64-bit FNV-1a hash with the chars of the String followed by a separator
+   */
+  static long hash(long h, String s) {
+    for (var i = 0; i < s.length(); i++) {
+      h ^= s.charAt(i);
+      h *= FNV_PRIME;
+    }
+    h ^= 0xFFFF;
+    h *= FNV_PRIME;
+    return h;
+  }
+
+  /**
+   * hash continues the 64-bit hash with another 64-bit value
+   */
+  static long hash(long h, long v) {
+    h ^= v;
+    h *= FNV_PRIME;
+    return h ^ (h >>> 29);
+  }
+
+  @Override
+  public String toString() {
+    return Long.toHexString(this.fingerprint) + this.fragments;
+  }
+}
@@ -0,0 +1,228 @@
+package run.undead.template;
+
+import run.undead.context.Context;
+import run.undead.view.View;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * <p>
+ * Stream is a keyed collection of items that is rendered on the client without the server keeping the items
+ * in memory (i.e. a LiveView "stream").  Instead of rendering the whole collection on every render, a {@link View}
+ * inserts, updates and deletes items and only those changes are sent to the client.  Once the changes are rendered
+ * they are dropped from the server.  Streams are created via {@link Context#stream} and rendered with
+ * {@link Directive#Stream}.  For example:
+ * <pre>{@code
+ *   public void mount(Context context, Map sessionData, Map params) {
+ *     context.stream("messages", Message::id).insertAll(loadMessages());
+ *   }
+ *
+ *   public void handleInfo(Context context, UndeadInfo info) {
+ *     context.<Message>stream("messages", Message::id).insert(Message.from(info));
+ *   }
+ *
+ *   public UndeadTemplate render(Meta meta) {
+ *     return HTML."""
+ *       <ul id="messages" ud-update="stream">
+ *         \{ Stream(meta.assigns().get("messages"), (domId, msg) -> HTML."<li id=\{domId}>\{msg.text()}</li>") }
+ *       </ul>
+ *     """;
+ *   }
+ * }</pre>
+ * </p>
+ * <strong>Note:</strong> the container element must have a unique <code>id</code> and the <code>ud-update="stream"</code>
+ * attribute and each item must use the dom id as its <code>id</code> attribute.
+ * @param <T> the type of the items in the stream
+ */
+public final class Stream<T> {
+  private final String ref;
+  private final Function<T, String> domId;
+  // pending inserts and deletes keyed by dom id (in the order they were made)
+  private final Map<String, Pending<T>> inserts = new LinkedHashMap<>();
+  private final Set<String> deletes = new LinkedHashSet<>();
+  private boolean reset;
+  private Runnable onChange;
+
+  /**
+   * Stream creates a new stream
+   * @param ref the unique (per {@link View}) reference of the stream
+   * @param domId returns the (unique) dom id of an item
+   */
+  public Stream(String ref, Function<T, String> domId) {
+    this.ref = ref;
+    this.domId = domId;
+  }
+
+  /**
+   * onChange sets a callback that is called whenever the stream changes
+   * @param onChange the callback
+   * @return this stream
+   */
+  public Stream<T> onChange(Runnable onChange) {
+    this.onChange = onChange;
+    return this;
+  }
+
+  /**
+   * insert appends the item to the end of the stream or updates it in place if an item
+   * with the same dom id is already on the client
+   * @param item the item to insert
+   * @return this stream
+   */
+  public Stream<T> insert(T item) {
+    return insert(item, -1, null);
+  }
+
+  /**
+   * insert inserts the item at the given index (where -1 means the end of the stream)
+   * @param item the item to insert
+   * @param at the index to insert the item at
+   * @return this stream
+   */
+  public Stream<T> insert(T item, int at) {
+    return insert(item, at, null);
+  }
+
+  /**
+   * insert inserts the item at the given index (where -1 means the end of the stream) and limits the
+   * number of items the client keeps.  A positive limit keeps the first items and a negative limit keeps
+   * the last items.
+   * @param item the item to insert
+   * @param at the index to insert the item at
+   * @param limit the maximum number of items on the client (or null for no limit)
+   * @return this stream
+   */
+  public Stream<T> insert(T item, int at, Integer limit) {
+    var id = this.domId.apply(item);
+    // a later insert of the same item replaces an earlier (pending) one
+    this.inserts.remove(id);
+    this.inserts.put(id, new Pending<>(new Insert(id, at, limit), item));
+    return changed();
+  }
+
+  /**
+   * insertAll appends all the items to the end of the stream
+   * @param items the items to insert
+   * @return this stream
+   */
+  public Stream<T> insertAll(Collection<? extends T> items) {
+    for (var item : items) {
+      insert(item);
+    }
+    return this;
+  }
+
+  /**
+   * delete removes the item from the stream
+   * @param item the item to delete
+   * @return this stream
+   */
+  public Stream<T> delete(T item) {
+    return deleteByDomId(this.domId.apply(item));
+  }
+
+  /**
+   * deleteByDomId removes the item with the given dom id from the stream
+   * @param domId the dom id of the item to delete
+   * @return this stream
+   */
+  public Stream<T> deleteByDomId(String domId) {
+    this.inserts.remove(domId);
+    this.deletes.add(domId);
+    return changed();
+  }
+
+  /**
+   * reset removes all the items from the stream on the client (and any pending inserts)
+   * @return this stream
+   */
+  public Stream<T> reset() {
+    this.inserts.clear();
+    this.deletes.clear();
+    this.reset = true;
+    return changed();
+  }
+
+  /**
+   * reset replaces all the items from the stream on the client with the given items
+   * @param items the new items of the stream
+   * @return this stream
+   */
+  public Stream<T> reset(Collection<? extends T> items) {
+    reset();
+    return insertAll(items);
+  }
+
+  /**
+   * domId returns the dom id of the item
+   * @param item the item
+   * @return the dom id of the item
+   */
+  public String domId(T item) {
+    return this.domId.apply(item);
+  }
+
+  /**
+   * drain returns the pending items and changes and clears them from the stream
+   */
+  List<Pending<T>> drain() {
+    var pending = List.copyOf(this.inserts.values());
+    this.inserts.clear();
+    return pending;
+  }
+
+  /**
+   * patch returns the pending changes (i.e. the "stream" part) for the given inserts and
+   * clears the deletes and reset flag
+   */
+  Patch patch(List<Pending<T>> drained) {
+    var inserts = new ArrayList<Insert>(drained.size());
+    for (var p : drained) {
+      inserts.add(p.insert());
+    }
+    var patch = new Patch(this.ref, inserts, List.copyOf(this.deletes), this.reset);
+    this.deletes.clear();
+    this.reset = false;
+    return patch;
+  }
+
+  private Stream<T> changed() {
+    if (this.onChange != null) {
+      this.onChange.run();
+    }
+    return this;
+  }
+
+  /**
+   * Insert is the position of an inserted item on the client
+   */
+  record Insert(String domId, int at, Integer limit) {
+  }
+
+  /**
+   * Pending is an item waiting to be rendered
+   */
+  record Pending<T>(Insert insert, T item) {
+  }
+
+  /**
+   * Patch is the "stream" part of a comprehension (i.e. the inserts, deletes and reset flag).  The
+   * rows of the comprehension are the rendered inserts in the same order.
+   */
+  record Patch(String ref, List<Insert> inserts, List<String> deletes, boolean reset) {
+    boolean isEmpty() {
+      return this.inserts.isEmpty() && this.deletes.isEmpty() && !this.reset;
+    }
+
+    Patch pruned() {
+      return new Patch(this.ref, List.of(), List.of(), false);
+    }
+  }
+}
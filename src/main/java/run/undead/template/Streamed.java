@@ -0,0 +1,12 @@
+package run.undead.template;
+
+import java.util.function.BiFunction;
+
+/**
+ * Streamed is the value embedded in templates created by {@link Directive#Stream}.
+ * @param stream the stream to render
+ * @param template renders an item given its dom id and the item
+ * @param <T> the type of the items in the stream
+ */
+record Streamed<T>(Stream<T> stream, BiFunction<String, T, UndeadTemplate> template) {
+}
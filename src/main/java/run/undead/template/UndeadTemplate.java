@@ -5,10 +5,11 @@ import run.undead.form.Form;
 import run.undead.js.JS;
 import run.undead.view.View;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 /**
  * UndeadTemplate is a {@link StringTemplate} based template engine that is designed to work with
@@ -203,224 +204,440 @@ import java.util.stream.IntStream;
  *  </p>
  */
 public class UndeadTemplate {
-  private static final Map<String, String> ENTITIES =
-      java.util.Map.of(
-          "&", "&amp;",
-          "<", "&lt;",
-          ">", "&gt;",
-          "\"", "&quot;",
-          "'", "&#39;",
-          "/", "&#x2F;",
-          "`", "&#x60;",
-          "=", "&#x3D;");
-  private static final Pattern ENT_REGEX = Pattern.compile(String.join("|", ENTITIES.keySet()));
-  private final StringTemplate raw;
+  // the (flattened) template which is computed lazily for concatenated templates
+  private volatile StringTemplate raw;
+  // the statics of concatenated templates (set along with raw)
+  private volatile Statics statics;
+  // the templates this template is a concatenation of (see concat) or null
+  private final UndeadTemplate[] rope;
 
   public UndeadTemplate(StringTemplate template) {
     this.raw = template;
+    this.rope = null;
   }
 
+  private UndeadTemplate(UndeadTemplate[] rope) {
+    this.rope = rope;
+  }
+
+
+  /**
+   * concat concatenates multiple templates into a single template.  The templates are not copied
+   * but kept as a "rope" that is only flattened (in a single linear pass) when the template is
+   * diffed and never when it is rendered to HTML.
+   * @param tmpls templates to concatenate
+   * @return a new template that is the concatenation of all templates
+   */
+  public static UndeadTemplate concat(UndeadTemplate... tmpls) {
+    // return the single template if there is only one
+    if(tmpls.length == 1) {
+      return tmpls[0];
+    }
+    return new UndeadTemplate(tmpls.clone());
+  }
+
+  public static UndeadTemplate concat(Collection<UndeadTemplate> tmpls) {
+    return concat(tmpls.toArray(UndeadTemplate[]::new));
+  }
 
-  private static final String escapeStringHTML(String input) {
-    var m = ENT_REGEX.matcher(input);
-    return m.replaceAll(
-        (replacer) -> {
-          // replace matches with correct escaped entity
-          return ENTITIES.get(replacer.group());
-        });
+  /**
+   * raw returns the {@link StringTemplate} of this template flattening the rope (if any)
+   */
+  private StringTemplate raw() {
+    var raw = this.raw;
+    if (raw == null) {
+      // benign race: concurrent callers flatten to the same template
+      raw = flatten();
+      this.raw = raw;
+    }
+    return raw;
   }
 
-  private static final String escapeHTML(Object input) {
-    switch (input) {
+  /**
+   * statics returns the (registered) {@link Statics} of this template.  The statics of a rope are looked up
+   * by the fragments of its templates (see {@link Statics#concat}) so the same concatenation is only merged once.
+   */
+  Statics statics() {
+    if (this.rope == null) {
+      return Statics.of(this.raw.fragments());
+    }
+    // flattening sets the statics before the template
+    raw();
+    return this.statics;
+  }
+
+  /**
+   * flatten merges the fragments and values of the rope into a single {@link StringTemplate}.  The merged
+   * fragments are shared by every rope of the same templates (see {@link Statics#concat}) so flattening
+   * the same concatenation again only collects the values.
+   */
+  private StringTemplate flatten() {
+    var parts = new ArrayList<List<String>>();
+    var values = new ArrayList<>();
+    forEachLeaf(leaf -> {
+      parts.add(leaf.raw.fragments());
+      values.addAll(leaf.raw.values());
+    });
+    var statics = Statics.concat(parts);
+    this.statics = statics;
+    return StringTemplate.of(statics.fragments(), values);
+  }
+
+  /**
+   * forEachLeaf calls the consumer with each (non-rope) template of the rope in order without
+   * recursing (so deeply nested concatenations can't overflow the stack)
+   */
+  private <E extends Exception> void forEachLeaf(LeafConsumer<E> consumer) throws E {
+    var stack = new ArrayDeque<UndeadTemplate>();
+    stack.push(this);
+    while (!stack.isEmpty()) {
+      var tmpl = stack.pop();
+      if (tmpl.rope == null) {
+        consumer.accept(tmpl);
+        continue;
+      }
+      for (var i = tmpl.rope.length - 1; i >= 0; i--) {
+        stack.push(tmpl.rope[i]);
+      }
+    }
+  }
+
+  @FunctionalInterface
+  private interface LeafConsumer<E extends Exception> {
+    void accept(UndeadTemplate leaf) throws E;
+  }
+
+  /**
+   * trim removes whitespace from front and back of template returning a new instance
+   * of an UndeadTemplate
+   * @return a new instance of an UndeadTemplate with whitespace removed from front and back
+   */
+  public UndeadTemplate trim() {
+    var raw = raw();
+    // the trimmed fragments are cached per shape
+    return new UndeadTemplate(StringTemplate.of(statics().trimmed(), raw.values()));
+  }
+
+  /**
+   * <p>
+   * compact returns a new instance of this template (and any nested templates) with insignificant whitespace
+   * in the static fragments collapsed.  Each run of whitespace is replaced with a single newline (if it contains
+   * a newline) or a single space.  The content of <code>pre</code>, <code>textarea</code>, <code>script</code>
+   * and <code>style</code> elements (including templates nested in them) is left untouched.  The collapsed
+   * fragments are computed once per template shape so compacting is cheap.  For example:
+   * <pre>{@code
+   *   public UndeadTemplate render(Meta meta) {
+   *     return HTML."""
+   *       <div>
+   *         <h1>\{ title }</h1>
+   *       </div>
+   *     """.compact();
+   *   }
+   * }</pre>
+   * </p>
+   * <strong>Note:</strong> this is opt-in as collapsing whitespace can change the layout of elements
+   * styled with <code>white-space: pre</code> (or similar) css.
+   * @return a new instance of this template with whitespace collapsed
+   */
+  public UndeadTemplate compact() {
+    var raw = raw();
+    var statics = statics();
+    var collapsed = statics.collapsed();
+    // keep the original fragments (rather than the registered copy) if nothing was collapsed
+    var fragments = collapsed.fragments() == statics.fragments() ? raw.fragments() : collapsed.fragments();
+    var values = raw.values();
+    List<Object> compacted = null;
+    for (var i = 0; i < values.size(); i++) {
+      var value = values.get(i);
+      var c = collapsed.raw()[i] ? value : compact(value);
+      if (c != value) {
+        if (compacted == null) {
+          compacted = new ArrayList<>(values);
+        }
+        compacted.set(i, c);
+      }
+    }
+    if (compacted == null && fragments == raw.fragments()) {
+      return this;
+    }
+    return new UndeadTemplate(StringTemplate.of(fragments, compacted == null ? values : compacted));
+  }
+
+  private static Object compact(Object value) {
+    switch (value) {
+      case UndeadTemplate t -> {
+        return t.compact();
+      }
+      case Memoized m -> {
+        return new Memoized(m.key(), () -> m.template().get().compact());
+      }
+      case Streamed<?> s -> {
+        return compact(s);
+      }
+      case Awaiting<?> a -> {
+        return a.template().compact();
+      }
+      case ForRange r -> {
+        return r.compact();
+      }
+      case ForEach<?> f -> {
+        return compact(f);
+      }
+      case List<?> l -> {
+        // read each item once as the list may be lazy
+        var items = l.toArray();
+        var changed = false;
+        for (var i = 0; i < items.length; i++) {
+          var item = items[i];
+          items[i] = item instanceof UndeadTemplate t ? t.compact() : item;
+          changed |= items[i] != item;
+        }
+        return changed ? Arrays.asList(items) : l;
+      }
+      case null, default -> {
+        return value;
+      }
+    }
+  }
+
+  private static <T> Streamed<T> compact(Streamed<T> s) {
+    return new Streamed<>(s.stream(), (id, item) -> s.template().apply(id, item).compact());
+  }
+
+  private static <T> ForEach<T> compact(ForEach<T> f) {
+    return new ForEach<>(f.items(), item -> f.template().apply(item).compact());
+  }
+
+  /**
+   * toParts returns the parts of the template as a Map of String to Object.  Undead
+   * uses the typed {@link #toRendered()} tree internally so this is mostly useful for
+   * debugging and testing.
+   * @return a Map of String to Object
+   */
+  public Map<String, Object> toParts() {
+    return toRendered().toParts();
+  }
+
+  /**
+   * toRendered returns the typed {@link Rendered} tree of this template.  This is
+   * used by Undead during Websocket rendering to send the parts of the template to the
+   * client and to diff subsequent renders.
+   * @return the {@link Rendered} tree of this template
+   */
+  public Rendered toRendered() {
+    return toRendered(null);
+  }
+
+  /**
+   * toRendered returns the typed {@link Rendered} tree of this template reusing the subtrees of
+   * the previous tree for any {@link Directive#Memo} whose key did not change.  Reused subtrees are
+   * the same instances as in the previous tree so {@link Rendered#diff} skips them entirely.
+   * @param previous the previously rendered tree (or null)
+   * @return the {@link Rendered} tree of this template
+   */
+  public Rendered toRendered(Rendered previous) {
+    var statics = statics();
+    // only reuse the previous tree if it has the same shape
+    var prev = previous != null && Statics.same(previous.shape(), statics) ? previous : null;
+    var dynamics = new Object[this.raw().values().size()];
+    var keys = toDynamics(
+        this.raw().values(),
+        dynamics,
+        prev == null ? null : prev.dynamics(),
+        prev == null ? null : prev.keys()
+    );
+    return new Rendered(statics, dynamics, keys);
+  }
+
+  /**
+   * toDynamics fills the dynamics from the values reusing the slots of the previous render
+   * for memos with unchanged keys.
+   * @return the memo keys for each slot or null if there are no memos
+   */
+  private static Object[] toDynamics(List<Object> values, Object[] dynamics, Object[] prevDynamics, Object[] prevKeys) {
+    Object[] keys = null;
+    for (var i = 0; i < dynamics.length; i++) {
+      var item = values.get(i);
+      var prevSlot = prevDynamics == null ? null : prevDynamics[i];
+      var memo = item instanceof UndeadTemplate tmpl ? tmpl.memo() : null;
+      if (memo != null) {
+        if (keys == null) {
+          keys = new Object[dynamics.length];
+        }
+        keys[i] = memo.key();
+        if (prevKeys != null && memo.key().equals(prevKeys[i])) {
+          // same key so reuse the previous subtree without calling the supplier
+          dynamics[i] = prevSlot;
+          continue;
+        }
+        item = memo.template().get();
+      }
+      dynamics[i] = toDynamic(item, prevSlot);
+    }
+    return keys;
+  }
+
+  private static Object toDynamic(Object item, Object prevSlot) {
+    switch (item) {
       case null -> {
         return "";
       }
-      case UndeadTemplate t -> {
-        return t.toString();
+      case UndeadTemplate tmpl -> {
+        // if there is a single fragment in child template then we can
+        // just use that directly instead of full parts tree
+        if (tmpl.raw().fragments().size() == 1) {
+          return tmpl.raw().fragments().get(0);
+        }
+        // recurse into child template
+        return tmpl.toRendered(prevSlot instanceof Rendered r ? r : null);
       }
       case JS js -> {
-        return escapeHTML(js.toJSON());
+        // TODO peek if in attribute with single or double quotes and if single then don't escape
+        return js.toAttribute();
       }
-      case List l -> {
-        // get first element of list to determine type
-        if (l.size() == 0) {
+      case Streamed<?> s -> {
+        return toStream(s, prevSlot instanceof Comprehension c ? c : null);
+      }
+      case Awaiting<?> a -> {
+        return toDynamic(a.template(), prevSlot);
+      }
+      case ForEach<?> f -> {
+        // the rows are created while iterating (rather than collected into a list first)
+        var rows = f.iterator();
+        if (!rows.hasNext()) {
           return "";
         }
-        var first = l.get(0);
-        if(first instanceof UndeadTemplate) {
-          // concatenate all templates
-          return concat((List<UndeadTemplate>) l).toString();
-        }
-        else if(first instanceof String) {
-          // concatenate all strings
-          return (String)l.stream().map(i -> String.valueOf(i)).collect(Collectors.joining());
-        }
-        else {
-          throw new RuntimeException("only hande arrays of UndeadTemplates or Strings" + input);
+        return toComprehension(rows, f.sizeHint(), prevSlot instanceof Comprehension c ? c : null);
+      }
+      // TODO handle live components
+      case List list -> {
+        if (list.isEmpty()) {
+          return "";
         }
+        return toComprehension(list, prevSlot instanceof Comprehension c ? c : null);
       }
       case String s -> {
-        return escapeStringHTML(s);
+        return Escaper.escape(s);
       }
       case Number n -> {
-        return escapeStringHTML(String.valueOf(n));
+        return Escaper.escape(n);
       }
       case Boolean b -> {
-        return escapeStringHTML(String.valueOf(b));
+        return Escaper.escape(b);
       }
       default -> {
-        // TODO throw error?
-        // throw new RuntimeException("Unexpected type" + input.getClass() + " " + input);
-        // for now be lenient and just use toString
-        return escapeStringHTML(input.toString());
+        throw new RuntimeException("Unexpected type in LiveTemplate:" + item.getClass() + " "+item);
       }
     }
   }
 
+  // statics of a comprehension whose rows each wrap a template with its own statics
+  private static final Statics WRAPPED = Statics.of(List.of("", ""));
+
+  private static Comprehension toComprehension(List<?> list, Comprehension prev) {
+    return toComprehension(list.iterator(), list.size(), prev);
+  }
+
   /**
-   * concat concatenates multiple templates into a single template
-   * @param tmpls templates to concatenate
-   * @return a new template that is the concatenation of all templates
+   * toComprehension reads the rows (in a single pass so lazy rows are only created once) and then
+   * renders them into a comprehension
    */
-  public static UndeadTemplate concat(UndeadTemplate... tmpls) {
-    // return the single template if there is only one
-    if(tmpls.length == 1) {
-      return tmpls[0];
+  private static Comprehension toComprehension(Iterator<?> items, int sizeHint, Comprehension prev) {
+    var tmpls = new UndeadTemplate[Math.max(sizeHint, 1)];
+    var rowStatics = new Statics[tmpls.length];
+    var size = 0;
+    Statics statics = null;
+    var shared = true;
+    while (items.hasNext()) {
+      var item = items.next();
+      switch (item) {
+        case UndeadTemplate tmpl -> {
+          if (size == tmpls.length) {
+            tmpls = Arrays.copyOf(tmpls, size * 2);
+            rowStatics = Arrays.copyOf(rowStatics, size * 2);
+          }
+          tmpls[size] = tmpl;
+          // in case of array, we use the same statics for all rows
+          rowStatics[size] = tmpl.statics();
+          if (statics == null) {
+            statics = rowStatics[size];
+          } else if (shared && !Statics.same(statics, rowStatics[size])) {
+            shared = false;
+          }
+          size++;
+        }
+        // TODO handle live components
+        case null, default -> {
+          throw new RuntimeException("Unexpected Array type in LiveTemplate:" + (item == null ? null : item.getClass()) + " " + item);
+        }
+      }
     }
-    // build new fragments and values
-    var fragments = new ArrayList<String>();
-    var values = new ArrayList<>();
-    for (var tmpl : tmpls) {
-      // templates must have one more fragment than values so when we concatenate templates
-      // we must merge the last fragment of the previous template with the first fragment of
-      // the next template and then add the rest of the fragments and values
-      if(fragments.size() > 0) {
-        // concat last fragment of previous template with first fragment of next template
-        var lastFrag = fragments.get(fragments.size() - 1);
-        var nextFrag = tmpl.raw.fragments().get(0);
-        fragments.set(fragments.size() - 1, lastFrag + nextFrag);
-        // now add the rest of the fragments from the next template
-        fragments.addAll(tmpl.raw.fragments().subList(1, tmpl.raw.fragments().size()));
-      } else {
-        // this must be the first template so just add all fragments
-        fragments.addAll(tmpl.raw.fragments());
+    var rowTmpls = tmpls;
+    var rowShapes = rowStatics;
+    // only reuse previous rows if they have the same statics
+    var prevRows = prev != null && Statics.same(prev.shape(), shared ? statics : WRAPPED) ? prev : null;
+    var isShared = shared;
+    // rows are independent so large lists are rendered in parallel (each into its own index)
+    var rows = new Object[size][];
+    var keys = new Object[size][];
+    Parallel.forEach(size, i -> {
+      Object[] prevRow = null;
+      Object[] prevKeys = null;
+      if (prevRows != null && i < prevRows.size()) {
+        if (isShared) {
+          prevRow = prevRows.row(i);
+          prevKeys = prevRows.keys(i);
+        } else if (prevRows.row(i)[0] instanceof Rendered r && Statics.same(r.shape(), rowShapes[i])) {
+          // wrapped rows carry their own statics
+          prevRow = r.dynamics();
+          prevKeys = r.keys();
+        }
       }
-      // add all values regardless of if this is the first template or not
-      values.addAll(tmpl.raw.values());
+      rows[i] = new Object[rowTmpls[i].raw().values().size()];
+      keys[i] = toDynamics(rowTmpls[i].raw().values(), rows[i], prevRow, prevKeys);
+    });
+    var hasKeys = false;
+    for (var k : keys) {
+      hasKeys |= k != null;
     }
-    return new UndeadTemplate(StringTemplate.of(fragments, values));
-  }
-
-  public static UndeadTemplate concat(Collection<UndeadTemplate> tmpls) {
-    return concat(tmpls.toArray(UndeadTemplate[]::new));
+    if (shared) {
+      return new Comprehension(statics, Arrays.asList(rows), hasKeys ? Arrays.asList(keys) : null);
+    }
+    // rows have different statics (e.g. a Switch in a For) so wrap each
+    // row in a single dynamic that carries its own statics
+    for (var i = 0; i < size; i++) {
+      rows[i] = new Object[]{new Rendered(rowShapes[i], rows[i], keys[i])};
+    }
+    return new Comprehension(WRAPPED, Arrays.asList(rows));
   }
 
   /**
-   * trim removes whitespace from front and back of template returning a new instance
-   * of an UndeadTemplate
-   * @return a new instance of an UndeadTemplate with whitespace removed from front and back
+   * toStream renders the pending inserts of the stream as the rows of a comprehension along with
+   * the stream changes.  If there are no inserts, the statics of the previous comprehension are kept
+   * so the shape doesn't change.
    */
-  public UndeadTemplate trim() {
-    var fragments = new ArrayList<String>();
-    for (var i = 0; i < this.raw.fragments().size(); i++) {
-      var fragment = this.raw.fragments().get(i);
-      if (i == 0) {
-        fragment = fragment.stripLeading();
-      }
-      if (i == this.raw.fragments().size() - 1) {
-        fragment = fragment.stripTrailing();
-      }
-      fragments.add(fragment);
+  private static <T> Comprehension toStream(Streamed<T> streamed, Comprehension prev) {
+    var pending = streamed.stream().drain();
+    var tmpls = new ArrayList<UndeadTemplate>(pending.size());
+    for (var p : pending) {
+      tmpls.add(streamed.template().apply(p.insert().domId(), p.item()));
     }
-    return new UndeadTemplate(StringTemplate.of(fragments, this.raw.values()));
+    var patch = streamed.stream().patch(pending);
+    return toComprehension(tmpls, null).withStream(patch, prev == null ? null : prev.shape());
   }
 
   /**
-   * toParts returns the parts of the template as a Map of String to Object.  This is
-   * used by Undead during Websocket rendering to send the parts of the template to the
-   * client.
-   * @return a Map of String to Object
+   * memo returns the {@link Memoized} value if this template was created by {@link Directive#Memo}
    */
-  public Map<String, Object> toParts() {
-    var indexedValues =
-        IntStream.range(0, this.raw.values().size())
-            .mapToObj(
-                i -> {
-                  var item = this.raw.values().get(i);
-                  Object val;
-                  switch (item) {
-                    case null -> {
-                      val = "";
-                    }
-                    case UndeadTemplate tmpl -> {
-                      // if there is a single fragment in child template then we can
-                      // just use that directly instead of full parts tree
-                      if (tmpl.raw.fragments().size() == 1) {
-                        val = tmpl.raw.fragments().get(0);
-                      } else {
-                        // recurse into child template
-                        val = tmpl.toParts();
-                      }
-                    }
-                    case JS js -> {
-                      // TODO peek if in attribute with single or double quotes and if single then don't escape
-                      val = escapeHTML(js);
-                    }
-                    // TODO handle live components
-                    case List list -> {
-                      if (list.isEmpty()) {
-                        val = "";
-                        break;
-                      }
-                      var d = new ArrayList<>();
-                      List<String> s = null;
-                      for (var li : list) {
-                        switch(li) {
-                          case UndeadTemplate tmpl -> {
-                            // if there is a single fragment in child template then we can
-                            // just use that directly instead of full parts tree
-                            if (tmpl.raw.fragments().size() == 1) {
-                              d.add(tmpl.raw.fragments().get(0));
-                            } else {
-                              // recurse into child template
-                              var childParts = tmpl.toParts();
-                              // remove statics since will be same for all and in "s" key for this collection
-                              childParts.remove("s");
-                              d.add(childParts);
-                            }
-                            // only need to set s once
-                            if (s == null) {
-                              s = tmpl.raw.fragments();
-                            }
-                          }
-                          // TODO handle live components
-                          default -> {
-                            throw new RuntimeException("Unexpected Array type in LiveTemplate:" + li.getClass() + " " + li);
-                          }
-                        }
-                      }
-                      // in case of array, we add a key of all the dynamics and use the same statics for all
-                      val = Map.of(
-                          "d", d,
-                          "s", s
-                      );
-                    }
-                    case String s -> {
-                      val = escapeHTML(s);
-                    }
-                    case Number n -> {
-                      val = escapeHTML(String.valueOf(n));
-                    }
-                    default -> {
-                      throw new RuntimeException("Unexpected type in LiveTemplate:" + item.getClass() + " "+item);
-                    }
-                  }
-                  return Map.entry(String.valueOf(i), val);
-                })
-            .collect(Collectors.toMap(i -> i.getKey(), i -> i.getValue()));
-    // add statics
-    indexedValues.put("s", raw.fragments());
-    return indexedValues;
+  private Memoized memo() {
+    if (this.rope != null) {
+      return null;
+    }
+    var values = this.raw().values();
+    if (values.size() == 1 && values.get(0) instanceof Memoized m && this.raw().fragments() == Memoized.FRAGMENTS) {
+      return m;
+    }
+    return null;
   }
 
   /**
@@ -459,13 +676,191 @@ public class UndeadTemplate {
    */
   @Override
   public String toString() {
-    var newValues = new ArrayList<>();
+    var sb = new StringBuilder();
+    try {
+      renderTo(sb);
+    } catch (IOException e) {
+      // StringBuilder does not throw IOExceptions
+      throw new UncheckedIOException(e);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * renderTo writes the HTML representation of the template to the given {@link Appendable}
+   * in a single pass over the template tree.  Nested templates are written directly
+   * to the {@link Appendable} rather than being rendered to intermediate Strings.
+   * @param out the {@link Appendable} to write to
+   * @return the {@link Appendable} that was written to
+   * @param <A> the type of {@link Appendable}
+   * @throws IOException if the {@link Appendable} throws an IOException
+   */
+  public <A extends Appendable> A renderTo(A out) throws IOException {
+    if (this.rope != null) {
+      forEachLeaf(leaf -> leaf.renderTo(out));
+      return out;
+    }
+    if (out instanceof Utf8Appendable utf8) {
+      renderBytes(utf8);
+      return out;
+    }
+    var fragments = this.raw().fragments();
+    var values = this.raw().values();
+    for (var i = 0; i < values.size(); i++) {
+      out.append(fragments.get(i));
+      renderValue(values.get(i), out);
+    }
+    out.append(fragments.get(values.size()));
+    return out;
+  }
+
+  /**
+   * renderTo writes the HTML representation of the template as UTF-8 bytes to the given
+   * {@link OutputStream}.  The static fragments are written from bytes that are encoded once
+   * per template shape (see {@link Statics}) so only the dynamic values are encoded on each render.
+   * @param out the {@link OutputStream} to write to
+   * @throws IOException if writing to the {@link OutputStream} fails
+   */
+  public void renderTo(OutputStream out) throws IOException {
+    var utf8 = new Utf8Appendable(ByteBuffer.allocate(8192), out);
+    renderBytes(utf8);
+    utf8.finish();
+  }
+
+  private void renderBytes(Utf8Appendable out) throws IOException {
+    if (this.rope != null) {
+      forEachLeaf(leaf -> leaf.renderBytes(out));
+      return;
+    }
+    var bytes = statics().utf8();
+    var values = this.raw().values();
+    for (var i = 0; i < values.size(); i++) {
+      out.write(bytes[i]);
+      renderValue(values.get(i), out);
+    }
+    out.write(bytes[values.size()]);
+  }
+
+  /**
+   * renderTo writes the HTML representation of the template as UTF-8 bytes into the given
+   * {@link ByteBuffer} in a single pass over the template tree.
+   * @param buf the {@link ByteBuffer} to write to
+   * @return the {@link ByteBuffer} that was written to
+   * @throws java.nio.BufferOverflowException if the {@link ByteBuffer} is too small
+   */
+  public ByteBuffer renderTo(ByteBuffer buf) {
+    var out = new Utf8Appendable(buf);
+    try {
+      renderBytes(out);
+      out.finish();
+    } catch (IOException e) {
+      // Utf8Appendable does not throw IOExceptions without an OutputStream
+      throw new UncheckedIOException(e);
+    }
+    return buf;
+  }
+
+  private static void renderValue(Object value, Appendable out) throws IOException {
+    switch (value) {
+      case null -> {}
+      case UndeadTemplate t -> t.renderTo(out);
+      case Memoized m -> m.template().get().renderTo(out);
+      case Streamed<?> s -> renderStream(s, out);
+      case Awaiting<?> a -> a.template().renderTo(out);
+      case ForEach<?> f -> renderForEach(f, out);
+      case JS js -> out.append(js.toAttribute());
+      case List l -> {
+        if (l.size() >= Parallel.current().threshold()) {
+          renderParallel(l, out);
+          return;
+        }
+        for (var item : l) {
+          renderItem(item, out);
+        }
+      }
+      case String s -> Escaper.escapeTo(s, out);
+      case Number n -> out.append(Escaper.escape(n));
+      case Boolean b -> out.append(Escaper.escape(b));
+      default -> Escaper.escapeTo(value.toString(), out);
+    }
+  }
 
-    for (Object value : this.raw.values()) {
-      newValues.add(escapeHTML(value));
+  private static void renderItem(Object item, Appendable out) throws IOException {
+    switch (item) {
+      case UndeadTemplate t -> t.renderTo(out);
+      // strings in lists are not escaped
+      case String s -> out.append(s);
+      default -> throw new RuntimeException("only hande arrays of UndeadTemplates or Strings" + item);
     }
+  }
 
-    return StringTemplate.interpolate(this.raw.fragments(), newValues);
+  /**
+   * renderParallel renders ranges of a large list into separate buffers in parallel and then
+   * appends the buffers in list order.  When rendering bytes the ranges are rendered as bytes too
+   * so the cached bytes of the statics are copied rather than encoded again.
+   */
+  private static void renderParallel(List<?> list, Appendable out) throws IOException {
+    if (out instanceof Utf8Appendable utf8) {
+      renderParallel(list, utf8);
+      return;
+    }
+    // the buffer of each range is stored at the start index of the range
+    var buffers = new StringBuilder[list.size()];
+    Parallel.forEachRange(list.size(), (from, to) -> {
+      var sb = new StringBuilder();
+      try {
+        for (var i = from; i < to; i++) {
+          renderItem(list.get(i), sb);
+        }
+      } catch (IOException e) {
+        // StringBuilder does not throw IOExceptions
+        throw new UncheckedIOException(e);
+      }
+      buffers[from] = sb;
+    });
+    for (var sb : buffers) {
+      if (sb != null) {
+        out.append(sb);
+      }
+    }
+  }
+
+  private static void renderParallel(List<?> list, Utf8Appendable out) throws IOException {
+    // the bytes of each range are stored at the start index of the range
+    var chunks = new Utf8Appendable.Chunk[list.size()];
+    Parallel.forEachRange(list.size(), (from, to) -> {
+      var chunk = new Utf8Appendable.Chunk();
+      var bytes = new Utf8Appendable(ByteBuffer.allocate(8192), chunk);
+      try {
+        for (var i = from; i < to; i++) {
+          renderItem(list.get(i), bytes);
+        }
+        bytes.finish();
+      } catch (IOException e) {
+        // Chunks do not throw IOExceptions
+        throw new UncheckedIOException(e);
+      }
+      chunks[from] = chunk;
+    });
+    for (var chunk : chunks) {
+      if (chunk != null) {
+        chunk.writeTo(out);
+      }
+    }
+  }
+
+  private static <T> void renderForEach(ForEach<T> f, Appendable out) throws IOException {
+    for (var item : f.items()) {
+      f.template().apply(item).renderTo(out);
+    }
+  }
+
+  private static <T> void renderStream(Streamed<T> streamed, Appendable out) throws IOException {
+    var pending = streamed.stream().drain();
+    streamed.stream().patch(pending);
+    for (var p : pending) {
+      streamed.template().apply(p.insert().domId(), p.item()).renderTo(out);
+    }
   }
 
   /**
@@ -0,0 +1,148 @@
+package run.undead.template;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Utf8Appendable is an {@link Appendable} that encodes characters as UTF-8 directly into a
+ * {@link ByteBuffer} without creating intermediate Strings or byte arrays.  Pre-encoded bytes
+ * (i.e. the cached {@link Statics} bytes) can be written with {@link #write(byte[])}.  When constructed
+ * with an {@link OutputStream} the buffer is flushed to the stream whenever it fills up otherwise
+ * a {@link java.nio.BufferOverflowException} is thrown if the buffer is too small.
+ */
+class Utf8Appendable implements Appendable {
+  private final ByteBuffer buf;
+  private final OutputStream out;
+  // high surrogate waiting for its low surrogate (which may arrive in the next append)
+  private char pendingHigh;
+
+  Utf8Appendable(ByteBuffer buf) {
+    this(buf, null);
+  }
+
+  Utf8Appendable(ByteBuffer buf, OutputStream out) {
+    this.buf = buf;
+    this.out = out;
+  }
+
+  /**
+   * write writes already UTF-8 encoded bytes
+   * @param bytes the bytes to write
+   * @throws IOException if writing to the {@link OutputStream} fails
+   */
+  void write(byte[] bytes) throws IOException {
+    write(bytes, 0, bytes.length);
+  }
+
+  /**
+   * write writes a range of already UTF-8 encoded bytes
+   * @param bytes the bytes to write
+   * @param offset the offset of the first byte
+   * @param length the number of bytes
+   * @throws IOException if writing to the {@link OutputStream} fails
+   */
+  void write(byte[] bytes, int offset, int length) throws IOException {
+    flushPending();
+    if (this.out != null && this.buf.remaining() < length) {
+      flush();
+      // large chunks go straight to the stream
+      if (this.buf.remaining() < length) {
+        this.out.write(bytes, offset, length);
+        return;
+      }
+    }
+    this.buf.put(bytes, offset, length);
+  }
+
+  @Override
+  public Appendable append(CharSequence csq) throws IOException {
+    return append(csq, 0, csq.length());
+  }
+
+  @Override
+  public Appendable append(CharSequence csq, int start, int end) throws IOException {
+    for (var i = start; i < end; i++) {
+      append(csq.charAt(i));
+    }
+    return this;
+  }
+
+  @Override
+  public Appendable append(char c) throws IOException {
+    // at most 4 bytes are written per char
+    if (this.out != null && this.buf.remaining() < 4) {
+      flush();
+    }
+    if (this.pendingHigh != 0) {
+      var high = this.pendingHigh;
+      this.pendingHigh = 0;
+      if (Character.isLowSurrogate(c)) {
+        var cp = Character.toCodePoint(high, c);
+        this.buf.put((byte) (0xF0 | (cp >> 18)));
+        this.buf.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+        this.buf.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+        this.buf.put((byte) (0x80 | (cp & 0x3F)));
+        return this;
+      }
+      // unpaired high surrogate
+      this.buf.put((byte) '?');
+    }
+    if (c < 0x80) {
+      this.buf.put((byte) c);
+    } else if (c < 0x800) {
+      this.buf.put((byte) (0xC0 | (c >> 6)));
+      this.buf.put((byte) (0x80 | (c & 0x3F)));
+    } else if (Character.isHighSurrogate(c)) {
+      this.pendingHigh = c;
+    } else if (Character.isLowSurrogate(c)) {
+      // unpaired low surrogate
+      this.buf.put((byte) '?');
+    } else {
+      this.buf.put((byte) (0xE0 | (c >> 12)));
+      this.buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+      this.buf.put((byte) (0x80 | (c & 0x3F)));
+    }
+    return this;
+  }
+
+  /**
+   * finish writes any dangling high surrogate and flushes the buffer to the {@link OutputStream} (if any)
+   * @throws IOException if writing to the {@link OutputStream} fails
+   */
+  void finish() throws IOException {
+    flushPending();
+    if (this.out != null) {
+      flush();
+      this.out.flush();
+    }
+  }
+
+  private void flushPending() throws IOException {
+    if (this.pendingHigh != 0) {
+      this.pendingHigh = 0;
+      if (this.out != null && !this.buf.hasRemaining()) {
+        flush();
+      }
+      this.buf.put((byte) '?');
+    }
+  }
+
+  private void flush() throws IOException {
+    if (this.buf.position() > 0) {
+      this.out.write(this.buf.array(), this.buf.arrayOffset(), this.buf.position());
+      this.buf.clear();
+    }
+  }
+
+  /**
+   * Chunk is a growable buffer of UTF-8 bytes (e.g. a range of a list rendered in parallel) that is
+   * written to a {@link Utf8Appendable} without copying
+   */
+  static final class Chunk extends ByteArrayOutputStream {
+    void writeTo(Utf8Appendable out) throws IOException {
+      out.write(this.buf, 0, this.count);
+    }
+  }
+}
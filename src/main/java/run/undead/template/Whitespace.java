@@ -0,0 +1,141 @@
+package run.undead.template;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Whitespace collapses insignificant whitespace in the static fragments of a template (see
+ * {@link UndeadTemplate#compact()}).  Each run of whitespace is replaced by a single newline (if the run
+ * contains a newline) or a single space.  Content of <code>pre</code>, <code>textarea</code>,
+ * <code>script</code> and <code>style</code> elements, quoted attribute values (e.g. <code>value="a  b"</code>)
+ * and comments are left untouched.
+ */
+final class Whitespace {
+
+  // elements whose content is whitespace sensitive
+  private static final String[] RAW_TAGS = {"pre", "textarea", "script", "style"};
+
+  private Whitespace() {
+  }
+
+  /**
+   * Collapsed is the result of collapsing the fragments of a template
+   * @param fragments the collapsed fragments (the same instance as the input if nothing changed)
+   * @param raw true for each dynamic slot that is inside a whitespace sensitive element, attribute value or comment
+   */
+  record Collapsed(List<String> fragments, boolean[] raw) {
+  }
+
+  static Collapsed collapse(List<String> fragments) {
+    var collapsed = new ArrayList<String>(fragments.size());
+    var raw = new boolean[fragments.size() - 1];
+    var changed = false;
+    // the whitespace sensitive element we are in (which may span fragments) or null
+    String rawTag = null;
+    // true inside a tag (i.e. between < and >), the quote of the attribute value we are in (or 0)
+    // and true inside a comment; all of which may span fragments
+    var inTag = false;
+    char quote = 0;
+    var inComment = false;
+    var sb = new StringBuilder();
+    for (var f = 0; f < fragments.size(); f++) {
+      var fragment = fragments.get(f);
+      sb.setLength(0);
+      var i = 0;
+      while (i < fragment.length()) {
+        var c = fragment.charAt(i);
+        if (rawTag != null) {
+          if (c == '<' && startsWithTag(fragment, i + 1, "/" + rawTag)) {
+            rawTag = null;
+          }
+          sb.append(c);
+          i++;
+          continue;
+        }
+        if (quote != 0) {
+          if (c == quote) {
+            quote = 0;
+          }
+          sb.append(c);
+          i++;
+          continue;
+        }
+        if (inComment) {
+          if (c == '>' && i >= 2 && fragment.startsWith("--", i - 2)) {
+            inComment = false;
+          }
+          sb.append(c);
+          i++;
+          continue;
+        }
+        if (inTag && (c == '"' || c == '\'')) {
+          quote = c;
+          sb.append(c);
+          i++;
+          continue;
+        }
+        if (c == '>') {
+          inTag = false;
+          sb.append(c);
+          i++;
+          continue;
+        }
+        if (c == '<') {
+          if (fragment.startsWith("!--", i + 1)) {
+            inComment = true;
+            sb.append("<!--");
+            i += 4;
+            continue;
+          }
+          rawTag = rawTagAt(fragment, i + 1);
+          inTag = rawTag == null;
+          sb.append(c);
+          i++;
+          continue;
+        }
+        if (!Character.isWhitespace(c)) {
+          sb.append(c);
+          i++;
+          continue;
+        }
+        // collapse the run of whitespace
+        var start = i;
+        var newline = false;
+        while (i < fragment.length() && Character.isWhitespace(fragment.charAt(i))) {
+          newline |= fragment.charAt(i) == '\n';
+          i++;
+        }
+        sb.append(newline ? '\n' : ' ');
+        changed |= i - start > 1 || fragment.charAt(start) != (newline ? '\n' : ' ');
+      }
+      collapsed.add(sb.toString());
+      if (f < raw.length) {
+        raw[f] = rawTag != null || quote != 0 || inComment;
+      }
+    }
+    return new Collapsed(changed ? List.copyOf(collapsed) : fragments, raw);
+  }
+
+  private static String rawTagAt(String s, int from) {
+    for (var tag : RAW_TAGS) {
+      if (startsWithTag(s, from, tag)) {
+        return tag;
+      }
+    }
+    return null;
+  }
+
+  // true if the tag name (case-insensitive) is at the index and followed by the end of the name
+  private static boolean startsWithTag(String s, int from, String tag) {
+    if (!s.regionMatches(true, from, tag, 0, tag.length())) {
+      return false;
+    }
+    var end = from + tag.length();
+    if (end == s.length()) {
+      // the tag continues in a dynamic (e.g. <pre \{attrs}>) or the next fragment
+      return true;
+    }
+    var c = s.charAt(end);
+    return c == '>' || c == '/' || Character.isWhitespace(c);
+  }
+}
@@ -1,4 +1,28 @@
 package run.undead.view;
 
+import run.undead.context.Assigns;
+
+/**
+ * Meta is passed to {@link View#render} and provides additional metadata and helpers for
+ * rendering the {@link View}.
+ */
 public class Meta {
+  private final Assigns assigns;
+
+  public Meta() {
+    this(new Assigns());
+  }
+
+  public Meta(Assigns assigns) {
+    this.assigns = assigns;
+  }
+
+  /**
+   * assigns returns the change-tracked state of the {@link View} (i.e. the same
+   * {@link Assigns} as {@link run.undead.context.Context#assigns()})
+   * @return the {@link Assigns} of the {@link View}
+   */
+  public Assigns assigns() {
+    return this.assigns;
+  }
 }
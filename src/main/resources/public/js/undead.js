@@ -5850,9 +5850,102 @@ within:
 
   // undead.ts
   var import_topbar = __toESM(require_topbar_min());
+  var STATICS_KEY = "undead:statics";
+  var MAX_STATICS = 200;
+  var MAX_JOIN_STATICS = 64;
+  var statics = loadStatics();
+  function loadStatics() {
+    try {
+      return new Map(JSON.parse(localStorage.getItem(STATICS_KEY) || "[]"));
+    } catch (e) {
+      return /* @__PURE__ */ new Map();
+    }
+  }
+  function saveStatics() {
+    try {
+      localStorage.setItem(STATICS_KEY, JSON.stringify(Array.from(statics.entries()).slice(-MAX_STATICS)));
+    } catch (e) {
+    }
+  }
+  function fingerprint(s) {
+    let hi = 3421674724, lo = 2216829733;
+    const mix = (c) => {
+      lo = (lo ^ c) >>> 0;
+      const a = lo * 435;
+      hi = hi * 435 + Math.floor(a / 4294967296) + (lo << 8) >>> 0;
+      lo = a >>> 0;
+    };
+    for (const fragment of s) {
+      for (let i = 0; i < fragment.length; i++) {
+        mix(fragment.charCodeAt(i));
+      }
+      mix(65535);
+    }
+    return hi ? hi.toString(16) + lo.toString(16).padStart(8, "0") : lo.toString(16);
+  }
+  function resolve(node) {
+    let changed = false;
+    const resolveStatics = (s) => {
+      if (typeof s === "string") {
+        const cached = statics.get(s);
+        if (!cached) {
+          throw new Error(`unknown statics: ${s}`);
+        }
+        statics.delete(s);
+        statics.set(s, cached);
+        return cached;
+      }
+      if (Array.isArray(s)) {
+        const fp = fingerprint(s);
+        changed = changed || !statics.has(fp);
+        statics.delete(fp);
+        statics.set(fp, s);
+      }
+      return s;
+    };
+    const walk = (n) => {
+      if (Array.isArray(n)) {
+        n.forEach(walk);
+        return;
+      }
+      if (n === null || typeof n !== "object") {
+        return;
+      }
+      for (const key of Object.keys(n)) {
+        if (key === "s") {
+          n.s = resolveStatics(n.s);
+        } else if (key === "p") {
+          for (const i of Object.keys(n.p)) {
+            n.p[i] = resolveStatics(n.p[i]);
+          }
+        } else if (key !== "e" && key !== "t" && key !== "stream") {
+          walk(n[key]);
+        }
+      }
+    };
+    walk(node);
+    return changed;
+  }
+  function decode(rawPayload, callback) {
+    const [join_ref, ref, topic, event, payload] = JSON.parse(rawPayload);
+    const response = event === "phx_reply" ? payload?.response : void 0;
+    const rendered = event === "diff" ? payload : response?.rendered ?? response?.diff;
+    if (rendered) {
+      try {
+        if (resolve(rendered)) {
+          saveStatics();
+        }
+      } catch (e) {
+        localStorage.removeItem(STATICS_KEY);
+        window.location.reload();
+      }
+    }
+    return callback({ join_ref, ref, topic, event, payload });
+  }
   var csrfToken = document.querySelector("meta[name='csrf-token']")?.getAttribute("content");
   var liveSocket = new LiveSocket("/live", Socket, {
-    params: { _csrf_token: csrfToken },
+    params: (el) => el ? { _csrf_token: csrfToken, _statics: Array.from(statics.keys()).slice(-MAX_JOIN_STATICS) } : { _csrf_token: csrfToken },
+    decode,
     bindingPrefix: "ud-"
   });
   import_topbar.default.config({ barColors: { 0: "#FF0000" }, shadowColor: "rgba(0, 0, 0, .3)" });
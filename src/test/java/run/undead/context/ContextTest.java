@@ -1,11 +1,47 @@
 package run.undead.context;
 
+import com.squareup.moshi.JsonWriter;
+import okio.Buffer;
 import org.junit.jupiter.api.Test;
+import run.undead.config.Config;
+import run.undead.event.SimpleUndeadInfo;
+import run.undead.event.UndeadInfo;
+import run.undead.template.Statics;
 import run.undead.template.Undead;
+import run.undead.template.UndeadTemplate;
+import run.undead.view.Meta;
+import run.undead.view.View;
 
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.*;
+import static run.undead.template.Directive.Async;
+import static run.undead.template.Directive.For;
+import static run.undead.template.Directive.Memo;
+import static run.undead.template.Directive.Stream;
 
 public class ContextTest {
 
@@ -20,7 +56,7 @@ public class ContextTest {
     """;
     var p = ctx.diffParts(tmpl);
     // no diff
-    assertEquals(tmpl.toParts(), p);
+    assertEquals(tmpl.toParts(), p.toParts());
 
     name = "bar";
     var tmpl2 = Undead.HTML."""
@@ -29,7 +65,525 @@ public class ContextTest {
       </div>
     """;
     var p2 = ctx.diffParts(tmpl2);
-    assertEquals(p2, Map.of("0", "bar"));
+    assertEquals(p2.toParts(), Map.of("0", "bar"));
+  }
+
+  @Test
+  public void testTitleDoesNotChangeBaseline() {
+    var ctx = new WsContext(null, null, null);
+    var name = "foo";
+    ctx.pageTitle("title");
+    var p = ctx.diffParts(Undead.HTML."<h1>hello \{name}</h1>");
+    assertEquals("title", p.toParts().get("t"));
+
+    // title should not be part of the baseline for the next diff
+    var p2 = ctx.diffParts(Undead.HTML."<h1>hello \{name}</h1>");
+    assertEquals(Map.of(), p2.toParts());
+
+    name = "bar";
+    var p3 = ctx.diffParts(Undead.HTML."<h1>hello \{name}</h1>");
+    assertEquals(Map.of("0", "bar"), p3.toParts());
+  }
+
+  @Test
+  public void testAssignsOnlyRenderChangedSlots() {
+    var ctx = new WsContext(null, null, null);
+    var assigns = ctx.assigns();
+    assigns.put("count", 1).put("items", List.of("a", "b"));
+    assertTrue(assigns.changed("count"));
+
+    var itemRenders = new AtomicInteger();
+    Supplier<UndeadTemplate> render = () -> Undead.HTML."""
+      <h1>\{ assigns.slot(() -> Undead.HTML."Count: \{ assigns.get("count") }", "count") }</h1>
+      <ul>\{ assigns.slot(() -> {
+        itemRenders.incrementAndGet();
+        return Undead.HTML."\{ For(assigns.<List<String>>get("items"), i -> Undead.HTML."<li>\{i}</li>") }";
+      }, "items") }</ul>
+    """;
+
+    ctx.diffParts(render.get());
+    assertEquals(1, itemRenders.get());
+    // changes are cleared after render
+    assertFalse(assigns.changed("count"));
+
+    // only the count slot is rendered and diffed
+    assigns.update("count", (Integer c) -> c + 1);
+    var p = ctx.diffParts(render.get());
+    assertEquals(1, itemRenders.get());
+    assertEquals(Map.of("0", Map.of("0", "2")), p.toParts());
+
+    // putting an equal value is not a change
+    assigns.put("items", List.of("a", "b"));
+    assertFalse(assigns.changed("items"));
+    assertEquals(Map.of(), ctx.diffParts(render.get()).toParts());
+    assertEquals(1, itemRenders.get());
+
+    // changing the items renders the items slot
+    assigns.put("items", List.of("a", "c"));
+    p = ctx.diffParts(render.get());
+    assertEquals(2, itemRenders.get());
+    assertEquals(Map.of("1", Map.of("0", Map.of("d", List.of(Map.of("0", "a"), Map.of("0", "c"))))), p.toParts());
+  }
+
+  @Test
+  public void testStreamSendsOnlyChanges() throws IOException {
+    var ctx = new WsContext(null, null, null);
+    var msgs = ctx.stream("msgs", (String m) -> "m-" + m);
+    msgs.insertAll(List.of("a", "b"));
+    Supplier<UndeadTemplate> render = () -> Undead.HTML."""
+      <ul id="msgs" ud-update="stream">\{ Stream(ctx.assigns().get("msgs"), (String id, String m) -> Undead.HTML."<li id=\"\{id}\">\{m}</li>") }</ul>
+    """;
+
+    var p = ctx.diffParts(render.get()).toParts();
+    var stream = (Map) ((Map) p.get("0")).get("0");
+    assertEquals(List.of(Map.of("0", "m-a", "1", "a"), Map.of("0", "m-b", "1", "b")), stream.get("d"));
+    assertEquals(List.of("msgs", Map.of("m-a", Arrays.asList(-1, null), "m-b", Arrays.asList(-1, null)), List.of()), stream.get("stream"));
+
+    // rows are not kept in the baseline
+    var baseline = (Map) ((Map) ctx.lastRendered.toParts().get("0")).get("0");
+    assertEquals(List.of(), baseline.get("d"));
+
+    // nothing changed so nothing to send
+    assertEquals(Map.of(), ctx.diffParts(render.get()).toParts());
+
+    // only the inserted row and deleted id are sent (without statics)
+    msgs.insert("c", 0).delete("a");
+    p = ctx.diffParts(render.get()).toParts();
+    stream = (Map) ((Map) p.get("0")).get("0");
+    assertEquals(List.of(Map.of("0", "m-c", "1", "c")), stream.get("d"));
+    assertEquals(List.of("msgs", Map.of("m-c", Arrays.asList(0, null)), List.of("m-a")), stream.get("stream"));
+    assertNull(stream.get("s"));
+
+    // stream part on the wire
+    msgs.insert("d", -1, -10);
+    var buffer = new Buffer();
+    ctx.diffParts(render.get()).toJson(JsonWriter.of(buffer));
+    assertEquals("{\"0\":{\"0\":{\"d\":[[\"m-d\",\"d\"]],\"stream\":[\"msgs\",{\"m-d\":[-1,-10]},[]]}}}", buffer.readUtf8());
+
+    // a later insert of the same item replaces the pending one
+    msgs.insert("e").insert("f").insert("e", 0);
+    p = ctx.diffParts(render.get()).toParts();
+    stream = (Map) ((Map) p.get("0")).get("0");
+    assertEquals(List.of(Map.of("0", "m-f", "1", "f"), Map.of("0", "m-e", "1", "e")), stream.get("d"));
+    assertEquals(Map.of("m-f", Arrays.asList(-1, null), "m-e", Arrays.asList(0, null)), ((List) stream.get("stream")).get(1));
+
+    // reset
+    msgs.reset();
+    p = ctx.diffParts(render.get()).toParts();
+    stream = (Map) ((Map) p.get("0")).get("0");
+    assertEquals(List.of("msgs", Map.of(), List.of(), true), stream.get("stream"));
+  }
+
+  @Test
+  public void testBaselineDoesNotRetainValues() throws IllegalAccessException {
+    var ctx = new WsContext(null, null, null);
+    var value = new BigDecimal("12.50");
+    record Item(Object value) {}
+    var items = List.of(new Item(value));
+    ctx.diffParts(Undead.HTML."<ul>\{ For(items, i -> Undead.HTML."<li>\{i.value()}</li>") }</ul>");
+    // the baseline only holds escaped strings so neither the value nor the item is kept after rendering
+    assertFalse(reaches(ctx.lastRendered, value));
+    assertFalse(reaches(ctx.lastRendered, items.get(0)));
+    assertEquals(Map.of(
+        "0", Map.of("d", List.of(Map.of("0", "12.50")), "s", List.of("<li>", "</li>")),
+        "s", List.of("<ul>", "</ul>")
+    ), ctx.lastRendered.toParts());
+
+    // whereas a Memo keyed by the model keeps it alive (see Directive#Memo)
+    var memoized = new WsContext(null, null, null);
+    memoized.diffParts(Undead.HTML."<ul>\{ Memo(items, () -> Undead.HTML."<li>\{items.size()}</li>") }</ul>");
+    assertTrue(reaches(memoized.lastRendered, items.get(0)));
+  }
+
+  // returns true if the target is reachable from the node via the fields of undead classes, arrays and collections
+  private static boolean reaches(Object node, Object target) throws IllegalAccessException {
+    return reaches(node, target, Collections.newSetFromMap(new IdentityHashMap<>()));
+  }
+
+  private static boolean reaches(Object node, Object target, Set<Object> seen) throws IllegalAccessException {
+    if (node == target) {
+      return true;
+    }
+    if (node == null || node instanceof String || !seen.add(node)) {
+      return false;
+    }
+    if (node instanceof Object[] array) {
+      for (var o : array) {
+        if (reaches(o, target, seen)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    if (node instanceof Iterable<?> iterable) {
+      for (var o : iterable) {
+        if (reaches(o, target, seen)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    if (node instanceof Map<?, ?> map) {
+      return reaches(map.keySet(), target, seen) || reaches(map.values(), target, seen);
+    }
+    for (var type = node.getClass(); type != null && type.getName().startsWith("run.undead."); type = type.getSuperclass()) {
+      for (var field : type.getDeclaredFields()) {
+        if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+          continue;
+        }
+        field.setAccessible(true);
+        if (reaches(field.get(node), target, seen)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  @Test
+  public void testSharedDiffs() throws Exception {
+    var sent = new ArrayList<String>();
+    var a = new WsContext("a", null, new Ticker());
+    var b = new WsContext("b", null, new Ticker());
+    a.sender = sent::add;
+    b.sender = sent::add;
+    var shared = new SharedDiffs(10);
+    a.sharedDiffs = shared;
+    b.sharedDiffs = shared;
+    a.shareDiffs(true);
+    b.shareDiffs(true);
+    a.diffParts(a.view.render(new Meta()));
+    b.diffParts(b.view.render(new Meta()));
+
+    a.sendInfo(new SimpleUndeadInfo("tick", "1.25"));
+    drain(a);
+    b.sendInfo(new SimpleUndeadInfo("tick", "1.25"));
+    drain(b);
+    assertEquals(List.of(
+        "[null,null,\"a\",\"diff\",{\"0\":\"1.25\"}]",
+        "[null,null,\"b\",\"diff\",{\"0\":\"1.25\"}]"
+    ), sent);
+
+    // the payload is computed once for sessions going from and to the same trees
+    var from = a.view.render(new Meta()).toRendered();
+    var payload = shared.payload(from, Undead.HTML."<b>\{ "2.00" }</b>".toRendered());
+    assertSame(payload, shared.payload(b.view.render(new Meta()).toRendered(), Undead.HTML."<b>\{ "2.00" }</b>".toRendered()));
+    shared.clear();
+    assertNotSame(payload, shared.payload(from, Undead.HTML."<b>\{ "2.00" }</b>".toRendered()));
+
+    // per session titles are not shared
+    sent.clear();
+    b.pageTitle("ACME 1.50");
+    a.sendInfo(new SimpleUndeadInfo("tick", "1.50"));
+    drain(a);
+    b.sendInfo(new SimpleUndeadInfo("tick", "1.50"));
+    drain(b);
+    assertEquals(List.of(
+        "[null,null,\"a\",\"diff\",{\"0\":\"1.50\"}]",
+        "[null,null,\"b\",\"diff\",{\"0\":\"1.50\",\"t\":\"ACME 1.50\"}]"
+    ), sent);
+  }
+
+  @Test
+  public void testSentStaticsAreNotResent() throws Exception {
+    class Toggle implements View {
+      boolean on;
+
+      @Override
+      public void handleInfo(Context context, UndeadInfo info) {
+        this.on = info.data().equals("on");
+      }
+
+      @Override
+      public UndeadTemplate render(Meta meta) {
+        return Undead.HTML."<div>\{ on ? Undead.HTML."<b>\{ "on" }</b>" : Undead.HTML."<i>\{ "off" }</i>" }</div>";
+      }
+    }
+    var sent = new ArrayList<String>();
+    var ctx = new WsContext("t", null, new Toggle());
+    ctx.sender = sent::add;
+    ctx.diffParts(ctx.view.render(new Meta()));
+
+    for (var state : List.of("on", "off", "on")) {
+      ctx.sendInfo(new SimpleUndeadInfo("toggle", state));
+    }
+    drain(ctx);
+    // once the client has the statics of a branch only the fingerprint is sent when it comes back
+    var on = Long.toHexString(Statics.of(List.of("<b>", "</b>")).fingerprint());
+    assertEquals(List.of(
+        "[null,null,\"t\",\"diff\",{\"0\":{\"0\":\"on\",\"s\":[\"<b>\",\"</b>\"]}}]",
+        "[null,null,\"t\",\"diff\",{\"0\":{\"0\":\"off\",\"s\":[\"<i>\",\"</i>\"]}}]",
+        "[null,null,\"t\",\"diff\",{\"0\":{\"0\":\"on\",\"s\":\"" + on + "\"}}]"
+    ), sent);
+  }
+
+  @Test
+  public void testAsync() throws Exception {
+    class Report implements View {
+      @Override
+      public UndeadTemplate render(Meta meta) {
+        return Undead.HTML."<p>\{ Async(
+            meta.assigns().get("total"),
+            Undead.HTML."loading",
+            (Integer t) -> Undead.HTML."total: \{t}",
+            err -> Undead.HTML."failed: \{err.getMessage()}") }</p>";
+      }
+    }
+    var sent = new CopyOnWriteArrayList<String>();
+    var ctx = new WsContext("a", null, new Report());
+    ctx.sender = sent::add;
+    var total = ctx.async("total", new CompletableFuture<Integer>());
+    var other = ctx.async("other", new CompletableFuture<Integer>());
+
+    // renders the loading state right away
+    assertEquals(Map.of("0", "loading", "s", List.of("", "")), ((Map) ctx.diffParts(ctx.view.render(new Meta(ctx.assigns()))).toParts().get("0")));
+
+    // results that complete during the join (a task in the same mailbox) are sent after the join reply
+    ctx.mailbox.post(() -> {
+      total.complete(42);
+      sent.add("join reply");
+    });
+    drain(ctx);
+    assertEquals(List.of("join reply", "[null,null,\"a\",\"diff\",{\"0\":{\"0\":{\"0\":\"42\",\"s\":[\"total: \",\"\"]}}}]"), sent);
+
+    // pending futures are cancelled on close
+    ctx.handleClose();
+    assertTrue(other.isCancelled());
+
+    // tasks are run on a virtual thread and interrupted on close
+    var ctx2 = new WsContext("b", null, new Report());
+    ctx2.sender = sent::add;
+    var started = new CountDownLatch(1);
+    var interrupted = new CountDownLatch(1);
+    var task = ctx2.async("total", () -> {
+      started.countDown();
+      try {
+        Thread.sleep(60_000);
+      } catch (InterruptedException e) {
+        interrupted.countDown();
+      }
+      return 1;
+    });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    ctx2.handleClose();
+    assertTrue(task.isCancelled());
+    assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testMailboxRunsTasksInOrder() throws Exception {
+    var ran = new CopyOnWriteArrayList<Integer>();
+    var threads = ConcurrentHashMap.<Thread>newKeySet();
+    var running = new AtomicInteger();
+    var errors = new CopyOnWriteArrayList<Throwable>();
+    var mailbox = new Mailbox(errors::add);
+    var posters = new Thread[4];
+    for (var p = 0; p < posters.length; p++) {
+      var from = p * 1000;
+      posters[p] = Thread.ofVirtual().start(() -> {
+        for (var i = from; i < from + 1000; i++) {
+          var n = i;
+          mailbox.post(() -> {
+            // never more than one task at a time
+            assertEquals(1, running.incrementAndGet());
+            threads.add(Thread.currentThread());
+            ran.add(n);
+            running.decrementAndGet();
+          });
+        }
+      });
+    }
+    for (var poster : posters) {
+      poster.join();
+    }
+    var done = new CountDownLatch(1);
+    mailbox.post(() -> {
+      throw new RuntimeException("boom");
+    });
+    mailbox.post(done::countDown);
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(4000, ran.size());
+    // tasks of each poster ran in the order they were posted
+    for (var p = 0; p < posters.length; p++) {
+      var from = p * 1000;
+      assertEquals(IntStream.range(from, from + 1000).boxed().toList(), ran.stream().filter(n -> n >= from && n < from + 1000).toList());
+    }
+    assertTrue(threads.stream().allMatch(Thread::isVirtual));
+    assertEquals(1, errors.size());
+
+    // tasks waiting when the mailbox is closed (and tasks posted after closing) are dropped
+    var blocked = new CountDownLatch(1);
+    var release = new CountDownLatch(1);
+    var drainer = new AtomicReference<Thread>();
+    mailbox.post(() -> {
+      drainer.set(Thread.currentThread());
+      blocked.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    assertTrue(blocked.await(5, TimeUnit.SECONDS));
+    mailbox.post(() -> ran.add(-1));
+    mailbox.close();
+    mailbox.post(() -> ran.add(-2));
+    release.countDown();
+    // the mailbox thread exits once it stops draining
+    assertTrue(drainer.get().join(Duration.ofSeconds(5)));
+    assertEquals(4000, ran.size());
+  }
+
+  @Test
+  public void testRenderWindow() throws Exception {
+    var sent = new CopyOnWriteArrayList<String>();
+    var ctx = new WsContext("a", null, new Ticker());
+    ctx.sender = sent::add;
+    // windows close when the test says so rather than after sleeping
+    var windows = new ConcurrentLinkedQueue<Runnable>();
+    ctx.windowTimer = (window, close) -> {
+      assertEquals(Duration.ofMillis(500), window);
+      windows.add(close);
+    };
+    ctx.renderWindow(Duration.ofMillis(500));
+    ctx.diffParts(ctx.view.render(new Meta()));
+
+    // the first info is rendered right away and the rest of the burst once the window closes
+    for (var price : List.of("1.01", "1.02", "1.03")) {
+      ctx.sendInfo(new SimpleUndeadInfo("tick", price));
+    }
+    drain(ctx);
+    assertEquals(List.of("[null,null,\"a\",\"diff\",{\"0\":\"1.01\"}]"), sent);
+    assertEquals(1, windows.size());
+    windows.poll().run();
+    drain(ctx);
+    assertEquals(List.of("[null,null,\"a\",\"diff\",{\"0\":\"1.01\"}]", "[null,null,\"a\",\"diff\",{\"0\":\"1.03\"}]"), sent);
+
+    // a client event renders right away (including pending infos) so the window has nothing left to render
+    ctx.sendInfo(new SimpleUndeadInfo("tick", "1.04"));
+    var reply = new AtomicReference<Map<String, Object>>();
+    ctx.mailbox.post(() -> reply.set(ctx.diffParts(ctx.view.render(new Meta())).toParts()));
+    drain(ctx);
+    assertEquals(Map.of("0", "1.04"), reply.get());
+    windows.poll().run();
+    drain(ctx);
+    assertEquals(2, sent.size());
+    // and the window is closed so the next info is rendered right away
+    assertTrue(windows.isEmpty());
+    ctx.sendInfo(new SimpleUndeadInfo("tick", "1.05"));
+    drain(ctx);
+    assertEquals("[null,null,\"a\",\"diff\",{\"0\":\"1.05\"}]", sent.get(2));
+  }
+
+  @Test
+  public void testOutboundMergesDiffsForSlowClients() throws Exception {
+    // a transport that only completes writes when told to
+    class SlowTransport implements WsSender {
+      final List<String> written = new CopyOnWriteArrayList<>();
+      final Deque<Consumer<Throwable>> callbacks = new ConcurrentLinkedDeque<>();
+      volatile String closed;
+
+      @Override
+      public void send(String data) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public void send(String data, Consumer<Throwable> done) {
+        this.written.add(data);
+        this.callbacks.add(done);
+      }
+
+      @Override
+      public void close(String reason) {
+        this.closed = reason;
+      }
+
+      void complete() {
+        this.callbacks.poll().accept(null);
+      }
+    }
+    var transport = new SlowTransport();
+    var ctx = new WsContext("a", null, new Ticker());
+    ctx.sender = new Outbound(transport, 2, 4);
+    ctx.diffParts(ctx.view.render(new Meta()));
+
+    // 1.01 is being written, 1.02 and 1.03 wait and then 1.04 is merged into 1.03
+    for (var price : List.of("1.01", "1.02", "1.03", "1.04")) {
+      ctx.sendInfo(new SimpleUndeadInfo("tick", price));
+    }
+    drain(ctx);
+    // replies are never merged (nor diffs with them)
+    ctx.sender.send("reply");
+    for (var price : List.of("1.05", "1.06")) {
+      ctx.sendInfo(new SimpleUndeadInfo("tick", price));
+    }
+    drain(ctx);
+    assertEquals(List.of("[null,null,\"a\",\"diff\",{\"0\":\"1.01\"}]"), transport.written);
+    for (var i = 0; i < 4; i++) {
+      transport.complete();
+    }
+    assertEquals(List.of(
+        "[null,null,\"a\",\"diff\",{\"0\":\"1.01\"}]",
+        "[null,null,\"a\",\"diff\",{\"0\":\"1.02\"}]",
+        "[null,null,\"a\",\"diff\",{\"0\":\"1.04\"}]",
+        "reply",
+        "[null,null,\"a\",\"diff\",{\"0\":\"1.06\"}]"
+    ), transport.written);
+    assertNull(transport.closed);
+
+    // the client cannot keep up once more than the limit is waiting
+    for (var i = 0; i < 5; i++) {
+      ctx.sender.send("reply" + i);
+    }
+    assertEquals("client cannot keep up", transport.closed);
+    transport.complete();
+    ctx.sender.send("dropped");
+    assertEquals(5, transport.written.size());
+  }
+
+  @Test
+  public void testFailedMessageClosesWebsocket() throws Exception {
+    var closed = new CountDownLatch(1);
+    var sent = new CopyOnWriteArrayList<String>();
+    var handler = new WsHandler(new Config());
+    handler.setWsSender(new WsSender() {
+      @Override
+      public void send(String data) {
+        sent.add(data);
+      }
+
+      @Override
+      public void close(String reason) {
+        closed.countDown();
+      }
+    });
+    // a join without a url fails so the client must see the websocket close (and rejoin)
+    handler.handleMessage("[\"1\",\"1\",\"lv:a\",\"phx_join\",{}]");
+    assertTrue(closed.await(5, TimeUnit.SECONDS));
+    assertEquals(List.of(), sent);
+  }
+
+  // a View that renders the price of the last info it handled
+  static class Ticker implements View {
+    String price = "1.00";
+
+    @Override
+    public void handleInfo(Context context, UndeadInfo info) {
+      this.price = info.data();
+    }
+
+    @Override
+    public UndeadTemplate render(Meta meta) {
+      return Undead.HTML."<b>\{ price }</b>";
+    }
+  }
+
+  // waits until the tasks in the mailbox of the context (and the tasks they post) have run
+  private static void drain(WsContext ctx) throws InterruptedException {
+    var done = new CountDownLatch(1);
+    ctx.mailbox.post(() -> ctx.mailbox.post(done::countDown));
+    assertTrue(done.await(5, TimeUnit.SECONDS));
   }
 
 }
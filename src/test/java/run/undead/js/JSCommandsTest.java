@@ -3,9 +3,15 @@ package run.undead.js;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static run.undead.template.Undead.HTML;
 
 public class JSCommandsTest {
 
@@ -362,4 +368,33 @@ public class JSCommandsTest {
     js.pushFocus(new PushFocusOpts());
     assertEquals("[[\"push_focus\",{\"to\":null}]]", js.toJSON());
   }
+
+  @Test
+  public void testFreeze() {
+    var js = new JS().push("select").focus("#menu");
+    var frozen = js.freeze();
+    assertTrue(frozen.frozen());
+    assertSame(frozen, frozen.freeze());
+    assertEquals(js.toJSON(), frozen.toJSON());
+    assertEquals("[[&quot;push&quot;,{&quot;event&quot;:&quot;select&quot;}],[&quot;focus&quot;,{&quot;to&quot;:&quot;#menu&quot;}]]", frozen.toAttribute());
+    assertEquals(js.toAttribute(), frozen.toAttribute());
+
+    // equal frozen chains share the escaped JSON
+    assertSame(frozen.toAttribute(), new JS().push("select").focus("#menu").freeze().toAttribute());
+
+    // the original chain can still be changed but the frozen one cannot
+    js.popFocus();
+    assertNotEquals(js.toJSON(), frozen.toJSON());
+    assertThrows(RuntimeException.class, () -> frozen.popFocus());
+
+    assertEquals("<a ud-click=\"" + frozen.toAttribute() + "\"></a>", HTML."<a ud-click=\"\{ frozen }\"></a>".toString());
+
+    // changing the options of a command after freezing does not change the frozen chain
+    var detail = new HashMap<String, Object>(Map.of("id", 1));
+    var dispatch = new JS().dispatch(new DispatchOpts("picked", "#menu", detail));
+    var frozenDispatch = dispatch.freeze();
+    detail.put("id", 2);
+    assertEquals("[[\"dispatch\",{\"to\":\"#menu\",\"event\":\"picked\",\"detail\":{\"id\":1}}]]", frozenDispatch.toJSON());
+    assertNotEquals(dispatch.toJSON(), frozenDispatch.toJSON());
+  }
 }
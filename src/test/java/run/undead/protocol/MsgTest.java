@@ -2,11 +2,21 @@ package run.undead.protocol;
 
 import com.squareup.moshi.JsonDataException;
 import org.junit.jupiter.api.Test;
+import run.undead.template.Statics;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static run.undead.template.Directive.For;
+import static run.undead.template.Undead.HTML;
 
 public class MsgTest {
   String msgStr = """
@@ -33,4 +43,71 @@ public class MsgTest {
     });
   }
 
+  @Test
+  public void Replies() {
+    var msg = new Msg("1", "2", "lv:a", "event", Map.of());
+    var rendered = HTML."<p>\{"a"}</p>".toRendered();
+    assertEquals("[\"1\",\"2\",\"lv:a\",\"phx_reply\",{\"status\":\"ok\",\"response\":{\"rendered\":{\"0\":\"a\",\"s\":[\"<p>\",\"</p>\"]}}}]",
+        Reply.rendered(msg, rendered));
+    assertEquals("[\"1\",\"2\",\"lv:a\",\"phx_reply\",{\"status\":\"ok\",\"response\":{\"diff\":{\"0\":\"a\",\"s\":[\"<p>\",\"</p>\"]}}}]",
+        Reply.replyDiff(msg, rendered));
+    assertEquals("[null,\"2\",\"phoenix\",\"phx_reply\",{\"status\":\"ok\"}]", Reply.heartbeat(msg));
+    assertEquals("[\"1\",\"2\",\"lv:a\",\"phx_reply\",{\"status\":\"ok\",\"response\":{\"to\":\"/b?c=\\\"d\\\"\"}}]",
+        Reply.redirect(msg, "/b?c=\"d\""));
+    assertEquals("[null,null,\"lv:a\",\"diff\",{\"0\":\"a\",\"s\":[\"<p>\",\"</p>\"]}]", Reply.diff("lv:a", rendered));
+    assertEquals(Reply.diff("lv:a", rendered), Reply.diff("lv:a", Reply.toJson(rendered)));
+  }
+
+  @Test
+  public void CachedStatics() {
+    var msg = new Msg("1", "2", "lv:a", "phx_join", Map.of());
+    var rendered = HTML."<p>\{ For(List.of("a"), i -> HTML."<i>\{i}</i>") }</p>".toRendered();
+    var p = Statics.of(List.of("<p>", "</p>")).fingerprint();
+    var i = Statics.of(List.of("<i>", "</i>")).fingerprint();
+    // the same fingerprint is computed by the client (see js/undead.ts)
+    assertEquals("bbddfd1effe4168e", Long.toHexString(p));
+    assertEquals("[\"1\",\"2\",\"lv:a\",\"phx_reply\",{\"status\":\"ok\",\"response\":{\"rendered\":{\"0\":{\"d\":[[\"a\"]],\"s\":\"" + Long.toHexString(i) + "\"},\"s\":\"bbddfd1effe4168e\"}}}]",
+        Reply.rendered(msg, rendered, new HashSet<>(Set.of(p, i))));
+    var cached = new HashSet<>(Set.of(42L));
+    assertEquals(Reply.rendered(msg, rendered), Reply.rendered(msg, rendered, cached));
+    // the statics written are cached by the client so later messages only send the fingerprints
+    assertEquals(Set.of(42L, p, i), cached);
+    assertEquals("[null,null,\"lv:a\",\"diff\",{\"0\":\"b\",\"s\":\"bbddfd1effe4168e\"}]",
+        Reply.diff("lv:a", HTML."<p>\{ "b" }</p>".toRendered(), cached));
+  }
+
+  @Test
+  public void ParseShared() throws IOException {
+    var msg = MsgParser.shared().parseJSON("""
+        [null,"4","lv:phx-1","event",{"type":"form","event":"save","value":"a=1&b=2","meta":{"n":[1,true,null]}}]
+        """);
+    assertEquals(null, msg.joinRef());
+    assertEquals("4", msg.msgRef());
+    assertEquals("lv:phx-1", msg.topic());
+    // common events are constants
+    assertSame("event", msg.event());
+    assertTrue(msg.payload().containsKey("value"));
+    assertEquals("save", msg.payload().get("event"));
+    assertEquals(Map.of("n", Arrays.asList(1.0, true, null)), msg.payload().get("meta"));
+    assertSame(msg.payload().get("meta"), msg.payload().get("meta"));
+    assertEquals(Map.of("type", "form", "event", "save", "value", "a=1&b=2", "meta", msg.payload().get("meta")), msg.payload());
+    // topics are shared between messages
+    assertSame(msg.topic(), MsgParser.shared().parseJSON("[\"1\",\"5\",\"lv:phx-1\",\"heartbeat\",{}]").topic());
+
+    assertThrows(JsonDataException.class, () -> MsgParser.shared().parseJSON("[\"1\",\"5\",\"phoenix\",\"heartbeat\"]"));
+    assertThrows(JsonDataException.class, () -> MsgParser.shared().parseJSON("[\"1\",\"5\",\"phoenix\",\"heartbeat\",[]]"));
+    assertThrows(JsonDataException.class, () -> MsgParser.shared().parseJSON("[\"1\",\"5\",\"phoenix\",\"heartbeat\",{},1]"));
+  }
+
+  @Test
+  public void Heartbeats() throws IOException {
+    var frame = "[null,\"42\",\"phoenix\",\"heartbeat\",{}]";
+    assertEquals(Reply.heartbeat(MsgParser.shared().parseJSON(frame)), Heartbeat.reply(frame));
+    // anything else is handled by the WsHandler
+    assertEquals(null, Heartbeat.reply("[null,\"4\\\"2\",\"phoenix\",\"heartbeat\",{}]"));
+    assertEquals(null, Heartbeat.reply("[null,\"\",\"phoenix\",\"heartbeat\",{}]"));
+    assertEquals(null, Heartbeat.reply("[\"1\",\"42\",\"lv:phx-1\",\"heartbeat\",{}]"));
+    assertEquals(null, Heartbeat.reply("[null,\"42\",\"phoenix\",\"phx_leave\",{}]"));
+  }
+
 }
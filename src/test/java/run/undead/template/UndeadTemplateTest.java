@@ -1,14 +1,29 @@
 package run.undead.template;
 
 import com.google.common.collect.Maps;
+import com.squareup.moshi.JsonWriter;
+import okio.Buffer;
 import org.junit.jupiter.api.Test;
 import run.undead.template.Directive.Case;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import java.util.stream.IntStream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static run.undead.template.Directive.*;
 import static run.undead.template.Undead.HTML;
 import static run.undead.template.UndeadTemplate.concat;
@@ -37,6 +52,23 @@ public class UndeadTemplateTest {
     var bar = "bar";
     template = concat(HTML."<foo>\{foo}</foo>", HTML."test", HTML."<bar>\{bar}</bar>");
     assertEquals("<foo>foo</foo>test<bar>bar</bar>", template.toString());
+    // boundary fragments are merged when flattened
+    assertEquals(List.of("<foo>", "</foo>test<bar>", "</bar>"), template.toRendered().statics());
+    assertEquals(Map.of("0", "foo", "1", "bar", "s", List.of("<foo>", "</foo>test<bar>", "</bar>")), template.toParts());
+    // the merged fragments are shared by every render of the same concatenation
+    for (var name : List.of("a", "b")) {
+      var again = concat(HTML."<foo>\{name}</foo>", HTML."test", HTML."<bar>\{name}</bar>");
+      assertSame(template.toRendered().shape(), again.toRendered().shape());
+      assertEquals(Map.of("0", name, "1", name), Rendered.diff(template.toRendered(), again.toRendered()).toParts());
+    }
+
+    // deeply nested concatenations
+    template = HTML."";
+    for (var i = 0; i < 10_000; i++) {
+      template = concat(template, HTML."<i>\{i}</i>");
+    }
+    assertTrue(template.toString().endsWith("<i>9998</i><i>9999</i>"));
+    assertEquals(10_001, template.toRendered().statics().size());
   }
 
   @Test
@@ -111,6 +143,41 @@ public class UndeadTemplateTest {
     assertEquals("<div>10</div><div>8</div><div>6</div><div>4</div>", template.toString());
   }
 
+  @Test
+  public void testLazyFor() {
+    // ranges are computed on access
+    assertEquals(List.of(10, 8, 6, 4), Range(10, 2, -2));
+    assertEquals(List.of(), Range(2, 2, 1));
+    assertEquals(3, Range(Integer.MAX_VALUE - 3, Integer.MAX_VALUE, 1).size());
+
+    // templates of int ranges are only created when rendered
+    var calls = new AtomicInteger();
+    var row = HTML."<tr>\{ For(0, 3, c -> {
+      calls.incrementAndGet();
+      return HTML."<td>\{c}</td>";
+    }) }</tr>";
+    assertEquals(0, calls.get());
+    assertEquals("<tr><td>0</td><td>1</td><td>2</td></tr>", row.toString());
+    assertEquals(3, calls.get());
+    assertEquals(Map.of("0", Map.of("d", List.of(Map.of("0", "0"), Map.of("0", "1"), Map.of("0", "2")), "s", List.of("<td>", "</td>")),
+        "s", List.of("<tr>", "</tr>")), row.toParts());
+    assertEquals("<p>2</p><p>1</p>", HTML."\{ For(2, 0, -1, i -> HTML."<p>\{i}</p>") }".toString());
+
+    // iterables are rendered while iterating
+    var items = IntStream.range(0, 3).boxed().toList();
+    Iterable<Integer> iterable = items::iterator;
+    var list = HTML."<ul>\{ For(iterable, i -> HTML."<li>\{i}</li>") }</ul>";
+    assertEquals("<ul><li>0</li><li>1</li><li>2</li></ul>", list.toString());
+    // the rows are the same as the rows of a list (no nested template)
+    assertEquals(HTML."<ul>\{ For(items, i -> HTML."<li>\{i}</li>") }</ul>".toParts(), list.toParts());
+    var before = list.toRendered();
+    Iterable<Integer> more = IntStream.range(0, 4).boxed().toList()::iterator;
+    assertEquals(Map.of("0", Map.of("d", List.of(Map.of("0", "0"), Map.of("0", "1"), Map.of("0", "2"), Map.of("0", "3")))),
+        Rendered.diff(before, HTML."<ul>\{ For(more, i -> HTML."<li>\{i}</li>") }</ul>".toRendered()).toParts());
+    assertEquals("<ul> <li>0</li></ul>", HTML."<ul>\{ For(() -> List.of(0).iterator(), i -> HTML."  <li>\{i}</li>") }</ul>".compact().toString());
+    assertEquals(Map.of("0", "", "s", List.of("<ul>", "</ul>")), HTML."<ul>\{ For(() -> Collections.<Integer>emptyIterator(), i -> HTML."<li>\{i}</li>") }</ul>".toParts());
+  }
+
   @Test
   public void testBasicDiff() {
     Function<Map, UndeadTemplate> tmplFn = (Map vars) -> {
@@ -188,4 +255,233 @@ public class UndeadTemplateTest {
     assertEquals(Map.of("0", Map.of("d", List.of(Map.of("0", "100"), Map.of("0", "101")), "s", List.of("<div>", "</div>")), "s", List.of("", "")), template.toParts());
   }
 
+  @Test
+  void testRenderedDiff() {
+    Function<Integer, UndeadTemplate> tmplFn = (Integer count) -> HTML."""
+      <div>
+        <h1>hello \{"foo"}</h1>
+        \{ Switch(count,
+              Case.of(c -> c == 0, c -> HTML." zero:\{c} "),
+              Case.of(c -> c >= 1, c -> HTML."more:\{c}")
+          )
+        }
+        \{ For(List.of(1, count), i -> HTML."<i>\{i}</i>") }
+      </div>
+    """;
+    var r0 = tmplFn.apply(0).toRendered();
+    var r1 = tmplFn.apply(1).toRendered();
+    var r2 = tmplFn.apply(2).toRendered();
+
+    // same tree is an empty diff
+    assertTrue(Rendered.diff(r0, tmplFn.apply(0).toRendered()).isEmpty());
+    // shape change sends statics, comprehension changes omit statics
+    assertEquals(Map.of(
+        "1", Map.of("0", "1", "s", List.of("more:", "")),
+        "2", Map.of("d", List.of(Map.of("0", "1"), Map.of("0", "1")))
+    ), Rendered.diff(r0, r1).toParts());
+    // same shape only sends the changed dynamics
+    assertEquals(Map.of(
+        "1", Map.of("0", "2"),
+        "2", Map.of("d", List.of(Map.of("0", "1"), Map.of("0", "2")))
+    ), Rendered.diff(r1, r2).toParts());
+  }
+
+  @Test
+  void testRenderedJson() throws IOException {
+    var template = HTML."<ul>\{ For(List.of("a", "b"), i -> HTML."<li>\{i}</li>") }</ul>";
+    var buffer = new Buffer();
+    template.toRendered().toJson(JsonWriter.of(buffer));
+    assertEquals("{\"0\":{\"d\":[[\"a\"],[\"b\"]],\"s\":[\"<li>\",\"</li>\"]},\"s\":[\"<ul>\",\"</ul>\"]}", buffer.readUtf8());
+
+    // statics nested in rows are written once to the template table and referenced by index
+    template = HTML."<ul>\{ For(List.of("a", "b"), i -> HTML."<li>\{ HTML."<b>\{i}</b>" }\{ For(List.of(1), j -> HTML."<i>\{j}</i>") }</li>") }</ul>";
+    template.toRendered().toJson(JsonWriter.of(buffer));
+    assertEquals("{\"0\":{\"d\":[[{\"0\":\"a\",\"s\":0},{\"d\":[[\"1\"]],\"s\":1}],[{\"0\":\"b\",\"s\":0},{\"d\":[[\"1\"]],\"s\":1}]],"
+        + "\"s\":[\"<li>\",\"\",\"</li>\"],\"p\":{\"0\":[\"<b>\",\"</b>\"],\"1\":[\"<i>\",\"</i>\"]}},\"s\":[\"<ul>\",\"</ul>\"]}", buffer.readUtf8());
+  }
+
+  @Test
+  void testMixedShapeArray() {
+    var template = HTML."""
+      \{ For(List.of(1, 2), i -> If(i == 1, HTML."<b>\{i}</b>", HTML."<i>\{i}</i>")) }
+    """.trim();
+    assertEquals("<b>1</b><i>2</i>", template.toString());
+    // rows with different statics carry their own statics
+    assertEquals(Map.of("0", Map.of(
+        "d", List.of(
+            Map.of("0", Map.of("0", "1", "s", List.of("<b>", "</b>"))),
+            Map.of("0", Map.of("0", "2", "s", List.of("<i>", "</i>")))),
+        "s", List.of("", "")),
+        "s", List.of("", "")), template.toParts());
+  }
+
+  @Test
+  void testEscape() {
+    var plain = "nothing to escape";
+    // strings without entities are returned untouched
+    assertSame(plain, Escaper.escape(plain));
+    assertEquals("&lt;a href&#x3D;&quot;&#x2F;&quot;&gt;Tom &amp; Jerry&#39;s&lt;&#x2F;a&gt;", Escaper.escape("<a href=\"/\">Tom & Jerry's</a>"));
+    assertEquals("-1.5E10", Escaper.escape((Object) (-1.5E10)));
+    assertEquals("false", Escaper.escape((Object) false));
+
+    var xss = "<script>alert(`hi`)</script>";
+    var template = HTML."<div>\{xss} \{1} \{true} \{null}</div>";
+    assertEquals("<div>&lt;script&gt;alert(&#x60;hi&#x60;)&lt;&#x2F;script&gt; 1 true </div>", template.toString());
+    assertEquals(Map.of("0", "&lt;script&gt;alert(&#x60;hi&#x60;)&lt;&#x2F;script&gt;", "1", "1", "2", "true", "3", "", "s", List.of("<div>", " ", " ", " ", "</div>")), template.toParts());
+  }
+
+  @Test
+  void testRenderTo() throws IOException {
+    var name = "Zoë & 🧟";
+    var template = HTML."""
+      <ul>\{ For(List.of(1, 2), i -> HTML."<li>\{HTML."<b>\{i}</b>"} \{name}</li>") }</ul>
+    """.trim();
+    var expected = "<ul><li><b>1</b> Zoë &amp; 🧟</li><li><b>2</b> Zoë &amp; 🧟</li></ul>";
+    assertEquals(expected, template.renderTo(new StringBuilder()).toString());
+
+    var buf = template.renderTo(ByteBuffer.allocate(1024)).flip();
+    assertEquals(expected, StandardCharsets.UTF_8.decode(buf).toString());
+
+    var out = new ByteArrayOutputStream();
+    template.renderTo(out);
+    assertEquals(expected, out.toString(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void testStaticsFingerprint() {
+    Function<String, UndeadTemplate> tmplFn = (String name) -> HTML."<h1>hello \{name}</h1>";
+    var r1 = tmplFn.apply("foo").toRendered();
+    var r2 = tmplFn.apply("bar").toRendered();
+    // same call site shares the same registered statics
+    assertSame(r1.shape(), r2.shape());
+    // fingerprint is based on the fragments content
+    var other = Statics.of(List.of("<h1>hello ", "</h1>"));
+    assertEquals(r1.shape().fingerprint(), other.fingerprint());
+    assertNotEquals(r1.shape().fingerprint(), Statics.of(List.of("<h1>hello", " </h1>")).fingerprint());
+  }
+
+  @Test
+  void testStaticsRegistryEvictsRuntimeShapes() {
+    Function<String, UndeadTemplate> tmplFn = (String name) -> HTML."<p>hi \{name}</p>";
+    var shape = tmplFn.apply("a").toRendered().shape();
+    var utf8 = shape.utf8();
+    // many shapes built at runtime (e.g. joins of varying arity) don't crowd out a call site that is in use
+    for (var i = 0; i < 30_000; i++) {
+      Statics.of(List.of("<b>" + i, "</b>"));
+      if (i % 100 == 0) {
+        assertSame(shape, tmplFn.apply("b").toRendered().shape());
+      }
+    }
+    assertSame(shape, tmplFn.apply("c").toRendered().shape());
+    assertSame(utf8, shape.utf8());
+    // evicted shapes are registered again and still compare as the same shape
+    var evicted = Statics.of(List.of("<b>0", "</b>"));
+    assertTrue(Statics.same(evicted, Statics.of(List.of("<b>0", "</b>"))));
+  }
+
+  @Test
+  void testMemo() {
+    var calls = new AtomicInteger();
+    Function<Map, UndeadTemplate> tmplFn = (Map vars) -> HTML."""
+      <h1>\{vars.get("name")}</h1>
+      \{ Memo(vars.get("rows"), () -> {
+          calls.incrementAndGet();
+          return HTML."<ul>\{ For((List<String>) vars.get("rows"), r -> HTML."<li>\{r}</li>") }</ul>";
+        })
+      }
+    """;
+    var vars = Maps.newHashMap();
+    vars.put("name", "foo");
+    vars.put("rows", List.of("a", "b"));
+    var r1 = tmplFn.apply(vars).toRendered(null);
+    assertEquals(1, calls.get());
+    assertTrue(tmplFn.apply(vars).toString().contains("<ul><li>a</li><li>b</li></ul>"));
+    assertEquals(2, calls.get());
+
+    // same key reuses the previous subtree without calling the supplier
+    vars.put("name", "bar");
+    var r2 = tmplFn.apply(vars).toRendered(r1);
+    assertEquals(2, calls.get());
+    assertSame(r1.get(1), r2.get(1));
+    assertEquals(Map.of("0", "bar"), Rendered.diff(r1, r2).toParts());
+
+    // new key renders the subtree again
+    vars.put("rows", List.of("a", "c"));
+    var r3 = tmplFn.apply(vars).toRendered(r2);
+    assertEquals(3, calls.get());
+    assertEquals(Map.of("1", Map.of("0", Map.of("d", List.of(Map.of("0", "a"), Map.of("0", "c"))))), Rendered.diff(r2, r3).toParts());
+  }
+
+  @Test
+  public void testParallelRender() {
+    var items = IntStream.range(0, 5_000).boxed().toList();
+    Function<Integer, UndeadTemplate> render = (Integer skip) -> HTML."""
+      <table>\{ For(items, i -> i % 7 == 0
+          ? HTML."<tr class=\"seven\"><td>\{i}</td><td>\{i == skip ? "<x>" : "y"}</td></tr>"
+          : HTML."<tr><td>\{i}</td></tr>") }</table>
+      <ul>\{ For(items, i -> HTML."<li>\{i}</li>") }</ul>
+    """;
+    var sequentialHtml = render.apply(-1).toString();
+    var sequential = render.apply(-1).toRendered();
+    var sequentialDiff = Rendered.diff(sequential, render.apply(70).toRendered());
+    // a pool of its own so the rows are rendered in parallel even on a single cpu
+    var pool = new ForkJoinPool(4);
+    new Parallel(10, pool).run(() -> {
+      assertEquals(sequentialHtml, render.apply(-1).toString());
+      // bytes are rendered in parallel into byte chunks
+      var out = new ByteArrayOutputStream();
+      try {
+        render.apply(-1).renderTo(out);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      assertEquals(sequentialHtml, out.toString(StandardCharsets.UTF_8));
+      var parallel = render.apply(-1).toRendered();
+      assertEquals(sequential, parallel);
+      assertEquals(Rendered.EMPTY, Rendered.diff(sequential, parallel));
+      assertEquals(sequentialDiff, Rendered.diff(parallel, render.apply(70).toRendered()));
+    });
+    pool.close();
+    assertThrows(IllegalArgumentException.class, () -> new Parallel(0, ForkJoinPool.commonPool()));
+  }
+
+  @Test
+  public void testCompact() {
+    var name = "foo";
+    Function<String, UndeadTemplate> tmplFn = (String n) -> HTML."""
+      <div   class="a">
+        <h1>  \{ n }  </h1>
+        <ul>\{ For(List.of(1, 2), i -> HTML."""
+          <li>
+            \{i}
+          </li>
+        """) }</ul>
+        <PRE>
+          keep   \{ HTML."  this\n    too" }
+        </PRE>
+        <textarea name="t">
+          and   this</textarea>  \{ HTML."  <b>  x  </b>" }
+      </div>
+    """;
+    assertEquals(" <div class=\"a\">\n<h1> foo </h1>\n<ul> <li>\n1\n</li>\n <li>\n2\n</li>\n</ul>\n<PRE>\n      keep     this\n    too\n    </PRE>\n"
+        + "<textarea name=\"t\">\n      and   this</textarea>  <b> x </b>\n</div>\n", tmplFn.apply(name).compact().toString());
+
+    // collapsed fragments are cached per shape
+    assertSame(tmplFn.apply(name).compact().toRendered().statics(), tmplFn.apply("bar").compact().toRendered().statics());
+    // nothing to collapse returns the same template
+    var tmpl = HTML."<b>\{name}</b>";
+    assertSame(tmpl, tmpl.compact());
+    // memos are compacted when rendered
+    var memo = HTML."<p>\{ Memo(1, () -> HTML."<b>  \{name}</b>") }</p>".compact();
+    assertEquals("<p><b> foo</b></p>", memo.toString());
+    assertEquals(Map.of("0", Map.of("0", "foo", "s", List.of("<b> ", "</b>")), "s", List.of("<p>", "</p>")), memo.toParts());
+    // quoted attribute values and comments are kept as is (whitespace between attributes is not)
+    var form = HTML."""
+      <input   value="a  b" title='c
+        d' data-x="\{ name }  ">
+      <!--  keep   this  -->  <p   class="x">  y  </p>
+    """;
+    assertEquals(" <input value=\"a  b\" title='c\n    d' data-x=\"foo  \">\n<!--  keep   this  --> <p class=\"x\"> y </p>\n", form.compact().toString());
+  }
+
 }